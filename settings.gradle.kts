@@ -43,6 +43,7 @@ include(
     ":snark-html",
     ":snark-ktor",
     ":snark-storage-driver",
+    ":snark-storage-benchmarks",
     ":snark-document-builder",
     ":snark-main",
     ":snark-pandoc-plugin",
@@ -17,5 +17,6 @@ dependencies {
     implementation(project(":snark-pandoc-plugin"))
 
     implementation("com.fasterxml.jackson.module:jackson-module-kotlin:$jacksonVersion")
+    implementation("org.jetbrains:markdown:0.3.5")
     implementation("org.jetbrains.kotlinx:kotlinx-serialization-json:1.3.3")
 }
@@ -2,7 +2,6 @@
 
 set -e
 
-sudo apt-get install -y python3
 sudo apt-get install -y nodejs
 sudo apt-get install -y npm
 
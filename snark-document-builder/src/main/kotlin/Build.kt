@@ -1,17 +1,68 @@
 package documentBuilder
 
+import java.util.IdentityHashMap
+
+/**
+ * Include chain leading from a file back to itself.
+ *
+ * @property cycle - files of the chain, starting and ending with the same file.
+ */
+public class CyclicIncludeException(public val cycle: List<FileName>) :
+    Exception("Cyclic include: ${cycle.joinToString(" -> ")}")
+
+/**
+ * Expansion of includes for one build. Each file is expanded once, after all files it includes,
+ * and its AST is then shared by every document including it.
+ */
 public class GraphManager(public val graph: DependencyGraph) {
+    private val expanded = HashSet<FileName>()
+
+    // files being expanded, in order of inclusion
+    private val inProgress = LinkedHashSet<FileName>()
+
+    // replacements of AST nodes for each file being expanded, grouped by their parents
+    private val splices = ArrayDeque<IdentityHashMap<MdAstParent, IdentityHashMap<MdAstElement, List<MdAstElement>>>>()
+
+    /**
+     * Replace [child] of [parent] with [replacement] when all dependencies of the current file are visited.
+     */
+    internal fun splice(parent: MdAstParent, child: MdAstElement, replacement: List<MdAstElement>) {
+        splices.last().getOrPut(parent) { IdentityHashMap() }[child] = replacement
+    }
+
+    // children of each parent are rebuilt once, however many of them are replaced
+    private fun applySplices(pending: Map<MdAstParent, Map<MdAstElement, List<MdAstElement>>>) {
+        for ((parent, replacements) in pending) {
+            val children = ArrayList<MdAstElement>(parent.children.size + replacements.values.sumOf { it.size })
+            for (child in parent.children) {
+                val replacement = replacements[child]
+                if (replacement != null) children.addAll(replacement) else children.add(child)
+            }
+            parent.children = children
+        }
+    }
+
     fun buildDocument(file: FileName) {
+        if (file in expanded) return
+        if (!inProgress.add(file)) {
+            throw CyclicIncludeException(inProgress.dropWhile { it != file } + file)
+        }
+
         val list = graph.nodes[file]
         if (list != null) {
+            splices.addLast(IdentityHashMap())
             for (element in list.dependencies) {
                 element.visit(this)
             }
+            applySplices(splices.removeLast())
         }
+
+        inProgress.remove(file)
+        expanded.add(file)
     }
 
     fun getAstRootDocument(file: FileName): MdAstRoot {
         buildDocument(file)
         return graph.nodes[file]!!.mdAst
     }
-}
\ No newline at end of file
+}
@@ -39,17 +39,12 @@ public data class IncludeDependency(
     val includeList: List<FileName>
 ) : DependencyGraphEdge {
     override fun visit(graphManager: GraphManager) {
-        val parent = parentNode
         val childs: MutableList<MdAstElement> = mutableListOf()
         for (file in includeList) {
             graphManager.buildDocument(file)
             childs.addAll(graphManager.graph.nodes[file]!!.mdAst.children)
         }
-        val elements: MutableList<MdAstElement> = parent.children.toMutableList()
-        val index = parent.children.indexOf(dependentNode)
-        elements.removeAt(index)
-        elements.addAll(index, childs)
-        parent.children = elements
+        graphManager.splice(parentNode, dependentNode, childs)
     }
 }
 
@@ -1,51 +1,62 @@
 package documentBuilder
 
 import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.async
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
 import space.kscience.snark.pandoc.PandocCommandBuilder
 import space.kscience.snark.pandoc.PandocWrapper
 import space.kscience.snark.storage.*
 import java.nio.file.Files
 import java.nio.file.Path
+import java.util.concurrent.ConcurrentHashMap
 import kotlin.io.path.*
 
-private val SNARK_HTML_RENDER = "snark-document-builder/src/main/nodejs/HtmlRenderer.js"
-private val SNARK_MD_RENDERER = "snark-document-builder/src/main/nodejs/MdRenderer.js"
-fun getHtml(ast_string: String): String
+// renderers are shared by all builds, workers are started on first use
+private val defaultRenderPool by lazy { NodeWorkerPool() }
+
+suspend fun getHtml(ast_string: String, renderPool: NodeWorkerPool = defaultRenderPool): String
 {
-    return ProcessBuilder("node", SNARK_HTML_RENDER, ast_string)
-        .redirectOutput(ProcessBuilder.Redirect.PIPE)
-        .redirectError(ProcessBuilder.Redirect.INHERIT)
-        .start().inputStream.bufferedReader().readText()
+    return renderPool.renderHtml(ast_string)
 }
 
-fun getLatex(ast_string: String) : Path
+suspend fun getLatex(ast_string: String, renderPool: NodeWorkerPool = defaultRenderPool) : Path
 {
     val outputMd = Files.createTempFile(Path.of("./data/"), "output", ".md")
+    // markdown is only an input of pandoc, the caller gets the tex file
+    try {
+        val output = renderPool.renderMarkdown(ast_string)
+        outputMd.writeText(output)
+
+        val outputTex = Files.createTempFile(Path.of("./data/"), "output", ".tex")
+
+        val pandocWrapper = PandocWrapper()
+        pandocWrapper.use { p: PandocWrapper? ->
+            val command = PandocCommandBuilder(
+                listOf<Path>(outputMd),
+                outputTex
+            )
+            PandocWrapper.execute(command)
+        }
 
-    val output = ProcessBuilder("node", SNARK_MD_RENDERER, ast_string)
-        .redirectOutput(ProcessBuilder.Redirect.PIPE)
-        .redirectError(ProcessBuilder.Redirect.INHERIT)
-        .start().inputStream.bufferedReader().readText()
-    outputMd.writeText(output)
-
-    val outputTex = Files.createTempFile(Path.of("./data/"), "output", ".tex")
-
-    val pandocWrapper = PandocWrapper()
-    pandocWrapper.use { p: PandocWrapper? ->
-        val command = PandocCommandBuilder(
-            listOf<Path>(outputMd),
-            outputTex
-        )
-        PandocWrapper.execute(command)
+        return outputTex
+    } finally {
+        outputMd.deleteIfExists()
     }
-
-    return outputTex
 }
 
-private val DEFAULT_DOCUMENT_ROOT = "main.md"
+internal val DEFAULT_DOCUMENT_ROOT = "main.md"
 
-public suspend fun buildDocument(root: Directory, path: Path): String {
-    val dependencyGraph = buildDependencyGraph(root, path)
+public suspend fun buildDocument(
+    root: Directory,
+    path: Path,
+    parseCache: ParseCache? = null,
+    renderPool: NodeWorkerPool = defaultRenderPool
+): String {
+    val dependencyGraph = buildDependencyGraph(root, path, parseCache)
 
     val graphManage = GraphManager(dependencyGraph)
 
@@ -59,11 +70,16 @@ public suspend fun buildDocument(root: Directory, path: Path): String {
 
     val root: MdAstRoot = dependencyGraph.nodes[path.toString()]!!.mdAst
 
-    return getHtml(jacksonObjectMapper().writeValueAsString(root))
+    return getHtml(jacksonObjectMapper().writeValueAsString(root), renderPool)
 }
 
-public suspend fun buildLatex(root: Directory, path: Path) : Path {
-    val dependencyGraph = buildDependencyGraph(root, path)
+public suspend fun buildLatex(
+    root: Directory,
+    path: Path,
+    parseCache: ParseCache? = null,
+    renderPool: NodeWorkerPool = defaultRenderPool
+) : Path {
+    val dependencyGraph = buildDependencyGraph(root, path, parseCache)
 
     val graphManage = GraphManager(dependencyGraph)
 
@@ -71,31 +87,74 @@ public suspend fun buildLatex(root: Directory, path: Path) : Path {
 
     val root: MdAstRoot = dependencyGraph.nodes[path.toString()]!!.mdAst
 
-    return getLatex(jacksonObjectMapper().writeValueAsString(root))
+    return getLatex(jacksonObjectMapper().writeValueAsString(root), renderPool)
 }
 
-public suspend fun buildDependencyGraph(root: Directory, path: Path): DependencyGraph {
-    val nodes = HashMap<FileName, DependencyGraphNode>()
-
-    buildNodes(root, path, nodes)
-
-    return DependencyGraph(nodes)
+// only changed files and documents including them are processed again, unchanged documents are taken from renderCache
+public suspend fun buildDocument(
+    graph: IncrementalGraph,
+    path: Path,
+    renderPool: NodeWorkerPool = defaultRenderPool,
+    renderCache: RenderCache? = null
+): String {
+    val document = graph.build(path)
+    if (renderCache == null) return getHtml(jacksonObjectMapper().writeValueAsString(document.ast), renderPool)
+
+    return String(renderCache.getOrRender("html", document.fingerprint) {
+        getHtml(jacksonObjectMapper().writeValueAsString(document.ast), renderPool).toByteArray()
+    })
 }
 
-private suspend fun buildNodes(root: Directory, path: Path, nodes: HashMap<FileName, DependencyGraphNode>) {
-    val pathString = path.toString()
-
-    assert(!nodes.containsKey(pathString))
-
-    val rootDcoument = (root / path).get(DEFAULT_DOCUMENT_ROOT)
-    nodes.put(pathString, buildDependencyGraphNode(rootDcoument.readAll(), path))
+// returned file is not shared with other callers, the caller is responsible for deleting it
+public suspend fun buildLatex(
+    graph: IncrementalGraph,
+    path: Path,
+    renderPool: NodeWorkerPool = defaultRenderPool,
+    renderCache: RenderCache? = null
+): Path {
+    val document = graph.build(path)
+    if (renderCache == null) return getLatex(jacksonObjectMapper().writeValueAsString(document.ast), renderPool)
+
+    var rendered: Path? = null
+    val latex = renderCache.getOrRender("tex", document.fingerprint) {
+        getLatex(jacksonObjectMapper().writeValueAsString(document.ast), renderPool).also { rendered = it }.readBytes()
+    }
+    // rendered file is returned as is, cached output is written to a new file
+    return rendered ?: Files.createTempFile(Path.of("./data/"), "output", ".tex").apply { writeBytes(latex) }
+}
 
-    val dependencies = getDependencies(nodes.getValue(pathString))
+/**
+ * Read and parse the document at [path] with all its includes. Files are loaded concurrently with at most [concurrency]
+ * of them at once, a file included from several places is loaded once.
+ */
+public suspend fun buildDependencyGraph(
+    root: Directory,
+    path: Path,
+    parseCache: ParseCache? = null,
+    concurrency: Int = DEFAULT_BATCH_CONCURRENCY
+): DependencyGraph {
+    val nodes = ConcurrentHashMap<FileName, Deferred<DependencyGraphNode>>()
+    val permits = Semaphore(concurrency)
+
+    coroutineScope {
+        // includes are started as soon as the including file is parsed, nobody waits for them until the end
+        fun load(path: Path) {
+            nodes.computeIfAbsent(path.toString()) {
+                async(start = CoroutineStart.LAZY) {
+                    val node = permits.withPermit {
+                        val document = (root / path).get(DEFAULT_DOCUMENT_ROOT).use { it.readAll() }
+                        buildDependencyGraphNode(document, path, parseCache)
+                    }
+                    getDependencies(node).forEach { load(Path(it)) }
+                    node
+                }
+            }.start()
+        }
 
-    for (dependency in dependencies) {
-        if (!nodes.containsKey(dependency))
-            buildNodes(root, Path(dependency), nodes)
+        load(path)
     }
+
+    return DependencyGraph(nodes.mapValues { (_, node) -> node.await() })
 }
 
 public suspend fun getDependencies(node: DependencyGraphNode): Set<FileName> {
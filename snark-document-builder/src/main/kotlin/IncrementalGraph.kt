@@ -0,0 +1,170 @@
+package documentBuilder
+
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.async
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.sync.withPermit
+import space.kscience.snark.storage.*
+import java.nio.file.Path
+import java.util.concurrent.ConcurrentHashMap
+import kotlin.io.path.Path
+
+/**
+ * State of one file as of the last build.
+ *
+ * @property info - storage metadata, file is not read again while it is the same.
+ * @property hash - hash of content, file is not parsed again while it is the same.
+ * @property parsed - AST before expansion of includes, never modified.
+ * @property includes - names of included files.
+ */
+private class FileState(
+    val info: FileInfo?,
+    val hash: String,
+    val parsed: ParsedDocument,
+    val includes: Set<FileName>
+)
+
+private fun MdAstElement.deepCopy(): MdAstElement = when (this) {
+    is MdAstRoot -> copy(children = children.map { it.deepCopy() })
+    is MdAstParagraph -> copy(children = children.map { it.deepCopy() })
+    is MdAstHeading -> copy(children = children.map { it.deepCopy() })
+    is MdAstBlockquote -> copy(children = children.map { it.deepCopy() })
+    is MdAstText -> copy()
+    is MdAstCode -> copy()
+}
+
+/**
+ * Document with expanded includes.
+ *
+ * @property ast - AST shared between builds, must not be modified.
+ * @property fingerprint - hash of content of the document and all documents it includes, directly or not.
+ */
+public data class BuiltDocument(
+    val ast: MdAstRoot,
+    val fingerprint: String
+)
+
+/**
+ * Dependency graph of documents in [root] kept between builds.
+ *
+ * Each build checks metadata of all files reachable from the built document. Changed files are read and parsed again,
+ * and only they and documents including them, directly or not, are expanded again. Expanded documents are shared
+ * between builds, so they must not be modified.
+ */
+public class IncrementalGraph(
+    private val root: Directory,
+    private val parseCache: ParseCache? = null,
+    private val concurrency: Int = DEFAULT_BATCH_CONCURRENCY
+) {
+    private val mutex = Mutex()
+    private val files = HashMap<FileName, FileState>()
+
+    // documents with expanded includes and their fingerprints, valid for the current version
+    private val expanded = HashMap<FileName, MdAstRoot>()
+    private val fingerprints = HashMap<FileName, String>()
+
+    /**
+     * Number of builds which found changed files
+     */
+    @Volatile
+    public var version: Long = 0
+        private set
+
+    private suspend fun load(name: FileName, old: FileState?): FileState {
+        val directory = root / Path(name)
+        val info = directory.stat(DEFAULT_DOCUMENT_ROOT)
+        if (old != null && info != null && old.info == info) return old
+
+        val content = directory.get(DEFAULT_DOCUMENT_ROOT).use { it.readAll() }
+        val hash = sha256(content)
+        if (old != null && old.hash == hash) return FileState(info, hash, old.parsed, old.includes)
+
+        val parsed = parseCache?.getOrParse(content) ?: parseDocument(content)
+        val includes = parsed.includes.flatMapTo(HashSet()) { include -> include.files.map { resolveInclude(Path(name), it) } }
+        return FileState(info, hash, parsed, includes)
+    }
+
+    // current state of all files reachable from the document, loaded concurrently as in buildDependencyGraph
+    private suspend fun refresh(path: Path): Map<FileName, FileState> {
+        val states = ConcurrentHashMap<FileName, Deferred<FileState>>()
+        val permits = Semaphore(concurrency)
+
+        coroutineScope {
+            fun visit(name: FileName) {
+                states.computeIfAbsent(name) {
+                    async(start = CoroutineStart.LAZY) {
+                        val state = permits.withPermit { load(name, files[name]) }
+                        state.includes.forEach { visit(it) }
+                        state
+                    }
+                }.start()
+            }
+
+            visit(path.toString())
+        }
+
+        return states.mapValues { (_, state) -> state.await() }
+    }
+
+    private fun invalidate(changed: Set<FileName>) {
+        val dependents = HashMap<FileName, MutableList<FileName>>()
+        for ((name, state) in files) {
+            state.includes.forEach { dependents.getOrPut(it) { mutableListOf() }.add(name) }
+        }
+
+        val queue = ArrayDeque(changed)
+        val invalid = HashSet(changed)
+        while (queue.isNotEmpty()) {
+            dependents[queue.removeFirst()]?.forEach { if (invalid.add(it)) queue.addLast(it) }
+        }
+        expanded.keys.removeAll(invalid)
+        fingerprints.keys.removeAll(invalid)
+    }
+
+    // Merkle hash over include tree, included files are taken in order of include directives as they are expanded
+    private fun fingerprint(name: FileName, inProgress: LinkedHashSet<FileName> = LinkedHashSet()): String =
+        fingerprints[name] ?: run {
+            if (!inProgress.add(name)) throw CyclicIncludeException(inProgress.dropWhile { it != name } + name)
+            val state = files.getValue(name)
+            // hashes have fixed length, so their concatenation is unambiguous
+            val included = state.parsed.includes.flatMap { it.files }
+                .joinToString("") { fingerprint(resolveInclude(Path(name), it), inProgress) }
+            inProgress.remove(name)
+            sha256((state.hash + included).toByteArray()).also { fingerprints[name] = it }
+        }
+
+    /**
+     * Document at [path] with all includes expanded
+     */
+    public suspend fun document(path: Path): MdAstRoot = build(path).ast
+
+    /**
+     * Document at [path] with all includes expanded and its fingerprint, both as of the same state of files
+     */
+    public suspend fun build(path: Path): BuiltDocument = mutex.withLock {
+        val states = refresh(path)
+        val changed = states.filter { (name, state) -> files[name]?.parsed !== state.parsed }.keys
+        files.putAll(states)
+        if (changed.isNotEmpty()) {
+            version++
+            invalidate(changed)
+        }
+
+        // expanded documents have no dependencies left, others are expanded from a copy of their AST
+        val nodes = states.mapValues { (name, state) ->
+            expanded[name]?.let { DependencyGraphNode(it, emptyList()) } ?: run {
+                val copy = ParsedDocument(state.parsed.ast.deepCopy() as MdAstRoot, state.parsed.includes)
+                val dependencies = mutableListOf<DependencyGraphEdge>()
+                fillDependencies(copy, dependencies, Path(name))
+                DependencyGraphNode(copy.ast, dependencies)
+            }
+        }
+        val document = GraphManager(DependencyGraph(nodes)).getAstRootDocument(path.toString())
+        nodes.forEach { (name, node) -> expanded[name] = node.mdAst }
+        BuiltDocument(document, fingerprint(path.toString()))
+    }
+}
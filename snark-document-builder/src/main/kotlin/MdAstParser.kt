@@ -0,0 +1,154 @@
+package documentBuilder
+
+import org.intellij.markdown.IElementType
+import org.intellij.markdown.MarkdownElementTypes
+import org.intellij.markdown.MarkdownTokenTypes
+import org.intellij.markdown.ast.ASTNode
+import org.intellij.markdown.flavours.commonmark.CommonMarkFlavourDescriptor
+import org.intellij.markdown.parser.MarkdownParser
+
+private val markdownParser = MarkdownParser(CommonMarkFlavourDescriptor())
+
+private val HEADINGS: Map<IElementType, Int> = mapOf(
+    MarkdownElementTypes.ATX_1 to 1,
+    MarkdownElementTypes.ATX_2 to 2,
+    MarkdownElementTypes.ATX_3 to 3,
+    MarkdownElementTypes.ATX_4 to 4,
+    MarkdownElementTypes.ATX_5 to 5,
+    MarkdownElementTypes.ATX_6 to 6,
+    MarkdownElementTypes.SETEXT_1 to 1,
+    MarkdownElementTypes.SETEXT_2 to 2,
+)
+
+private val ESCAPE = Regex("""\\([!-/:-@\[-`{-~])""")
+
+/**
+ * Parse markdown into the same tree as mdast-util-from-markdown used by MarkdownParser.js, without leaving JVM.
+ *
+ * Inline markup and blocks without MdAst counterparts (lists, html, thematic breaks) are kept as text of their source,
+ * since MdAst has no elements for them.
+ */
+public fun parseMarkdown(markdown: String): MdAstRoot = MdAstBuilder(markdown).root()
+
+private class MdAstBuilder(private val source: String) {
+    private val lineStarts: IntArray = buildList {
+        add(0)
+        source.forEachIndexed { index, char -> if (char == '\n') add(index + 1) }
+    }.toIntArray()
+
+    private fun point(offset: Int): Point {
+        val line = lineStarts.binarySearch(offset).let { if (it >= 0) it else -it - 2 }
+        return Point(line + 1, offset - lineStarts[line] + 1, offset)
+    }
+
+    private fun position(start: Int, end: Int) = Position(point(start), point(end))
+
+    private fun ASTNode.position() = position(startOffset, endOffset)
+
+    private fun ASTNode.text() = source.substring(startOffset, endOffset)
+
+    fun root(): MdAstRoot {
+        val tree = markdownParser.buildMarkdownTreeFromString(source)
+        return MdAstRoot(blocks(tree), position(0, source.length))
+    }
+
+    private fun blocks(node: ASTNode): List<MdAstElement> = node.children.mapNotNull { child ->
+        when (child.type) {
+            MarkdownTokenTypes.EOL, MarkdownTokenTypes.WHITE_SPACE, MarkdownTokenTypes.BLOCK_QUOTE -> null
+            MarkdownElementTypes.PARAGRAPH -> MdAstParagraph(inline(child.children), child.position())
+            in HEADINGS -> {
+                val content = child.children.filter {
+                    it.type == MarkdownTokenTypes.ATX_CONTENT || it.type == MarkdownTokenTypes.SETEXT_CONTENT
+                }.flatMap { it.children }
+                MdAstHeading(HEADINGS.getValue(child.type), inline(content), child.position())
+            }
+
+            MarkdownElementTypes.CODE_FENCE -> fencedCode(child)
+            MarkdownElementTypes.CODE_BLOCK -> indentedCode(child)
+            MarkdownElementTypes.BLOCK_QUOTE -> MdAstBlockquote(blocks(child), child.position())
+            else -> MdAstParagraph(listOf(MdAstText(child.text(), child.position())), child.position())
+        }
+    }
+
+    // all supported inline content is text, so the tokens are joined into one text node
+    private fun inline(tokens: List<ASTNode>): List<MdAstElement> {
+        val value = StringBuilder()
+        var start = -1
+        var end = -1
+        // whitespace at line start and after block quote markers is not a part of paragraph text
+        var lineStart = true
+        // ranges of value taken by code spans, backslash escapes are not processed inside them
+        val code = mutableListOf<IntRange>()
+
+        fun visit(token: ASTNode) {
+            when (token.type) {
+                MarkdownTokenTypes.EOL, MarkdownTokenTypes.HARD_LINE_BREAK -> {
+                    while (value.endsWith(' ') || value.endsWith('\t')) value.setLength(value.length - 1)
+                    // hard break token is followed by its own line end, paragraphs never contain blank lines
+                    if (!value.endsWith('\n')) value.append('\n')
+                    lineStart = true
+                }
+
+                MarkdownTokenTypes.BLOCK_QUOTE -> lineStart = true
+                MarkdownTokenTypes.WHITE_SPACE -> if (!lineStart && start >= 0) value.append(token.text())
+                else -> if (token.children.isEmpty()) {
+                    if (start < 0) start = token.startOffset
+                    end = token.endOffset
+                    value.append(token.text())
+                    lineStart = false
+                } else if (token.type == MarkdownElementTypes.CODE_SPAN) {
+                    val codeStart = value.length
+                    token.children.forEach(::visit)
+                    code += codeStart until value.length
+                } else {
+                    token.children.forEach(::visit)
+                }
+            }
+        }
+        tokens.forEach(::visit)
+
+        if (start < 0) return emptyList()
+        val text = unescape(value.trimEnd().toString(), code)
+        return listOf(MdAstText(text, position(start, end)))
+    }
+
+    private fun unescape(text: String, code: List<IntRange>): String = buildString {
+        var position = 0
+        for (range in code) {
+            val codeStart = range.first.coerceAtMost(text.length)
+            val codeEnd = (range.last + 1).coerceAtMost(text.length)
+            append(text.substring(position, codeStart).replace(ESCAPE, "$1"))
+            append(text, codeStart, codeEnd)
+            position = codeEnd
+        }
+        append(text.substring(position).replace(ESCAPE, "$1"))
+    }
+
+    private fun fencedCode(node: ASTNode): MdAstCode {
+        val info = node.children.find { it.type == MarkdownTokenTypes.FENCE_LANG }?.text()?.trim().orEmpty()
+        val lang = info.substringBefore(' ').takeIf { it.isNotEmpty() }
+        val meta = info.substringAfter(' ', "").trim().takeIf { it.isNotEmpty() }
+
+        // content starts after the line with opening fence
+        val lines = StringBuilder()
+        node.children
+            .dropWhile { it.type != MarkdownTokenTypes.EOL }
+            .drop(1)
+            .takeWhile { it.type != MarkdownTokenTypes.CODE_FENCE_END }
+            .forEach {
+                when (it.type) {
+                    MarkdownTokenTypes.EOL -> lines.append('\n')
+                    MarkdownTokenTypes.BLOCK_QUOTE -> {}
+                    else -> lines.append(it.text())
+                }
+            }
+        return MdAstCode(lang, meta, lines.toString().removeSuffix("\n"), node.position())
+    }
+
+    private fun indentedCode(node: ASTNode): MdAstCode {
+        val value = node.children
+            .filter { it.type == MarkdownTokenTypes.CODE_LINE }
+            .joinToString("\n") { line -> line.text().let { it.removePrefix(it.take(4).takeWhile { c -> c == ' ' }) } }
+        return MdAstCode(value = value, position = node.position())
+    }
+}
@@ -4,9 +4,8 @@ import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
 import com.fasterxml.jackson.module.kotlin.readValue
 import java.nio.file.Path
 
-// snark-main/build.gradle.kts depends on these pathes
+// snark-main/build.gradle.kts depends on this path
 private val MARKDOWN_PARSER = "snark-document-builder/src/main/nodejs/MarkdownParser.js"
-private val SNARK_PARSER = "snark-document-builder/src/main/python/SnarkParser.py"
 
 public suspend fun parseMd(mdFile: ByteArray, parserPath: String = MARKDOWN_PARSER): MdAstRoot {
     val process = ProcessBuilder("node", parserPath, String(mdFile))
@@ -18,32 +17,60 @@ public suspend fun parseMd(mdFile: ByteArray, parserPath: String = MARKDOWN_PARS
     return jacksonObjectMapper().readValue<MdAstRoot>(result)
 }
 
-public suspend fun buildDependencyGraphNode(mdFile: ByteArray, path: Path): DependencyGraphNode {
-    val treeRoot = parseMd(mdFile)
+/**
+ * Include command found in AST.
+ *
+ * @property parent - indices of children leading from the root to the parent of include command.
+ * @property child - index of text node with include command among children of the parent.
+ * @property files - files to be included, relative to the document directory.
+ */
+public data class IncludeLocation(
+    val parent: List<Int>,
+    val child: Int,
+    val files: List<FileName>
+)
+
+/**
+ * Result of parsing of one markdown file, which depends only on its content.
+ */
+public data class ParsedDocument(
+    val ast: MdAstRoot,
+    val includes: List<IncludeLocation>
+)
+
+public suspend fun parseDocument(mdFile: ByteArray): ParsedDocument {
+    val treeRoot = parseMarkdown(String(mdFile))
+    val includes = mutableListOf<IncludeLocation>()
+
+    findIncludes(treeRoot, emptyList(), includes)
+
+    return ParsedDocument(treeRoot, includes)
+}
+
+public suspend fun buildDependencyGraphNode(mdFile: ByteArray, path: Path, parseCache: ParseCache? = null): DependencyGraphNode {
+    val parsed = parseCache?.getOrParse(mdFile) ?: parseDocument(mdFile)
     val dependencies = mutableListOf<DependencyGraphEdge>()
 
-    fillDependencies(treeRoot, dependencies, path)
+    fillDependencies(parsed, dependencies, path)
 
-    return DependencyGraphNode(treeRoot, dependencies)
+    return DependencyGraphNode(parsed.ast, dependencies)
 }
 
-internal suspend fun fillDependencies(
+internal fun findIncludes(
         currentNode: MdAstElement,
-        dependencies: MutableList<DependencyGraphEdge>,
-        path: Path) {
+        location: List<Int>,
+        includes: MutableList<IncludeLocation>) {
     when (currentNode) {
         is MdAstParent -> {
-            for (child in currentNode.children) {
+            for ((index, child) in currentNode.children.withIndex()) {
                 if (child is MdAstText) {
-                    val includeList = getIncludeFiles(child.value).toMutableList()
-
-                    if (includeList.size > 0) {
-                        includeList.replaceAll { path.toString() + "/" + it }
+                    val includeList = getIncludeFiles(child.value)
 
-                        dependencies += IncludeDependency(currentNode, child, includeList)
+                    if (includeList.isNotEmpty()) {
+                        includes += IncludeLocation(location, index, includeList)
                     }
                 } else {
-                    fillDependencies(child, dependencies, path)
+                    findIncludes(child, location + index, includes)
                 }
             }
         }
@@ -51,10 +78,50 @@ internal suspend fun fillDependencies(
     }
 }
 
-public suspend fun getIncludeFiles(string: String): List<FileName> {
-    return jacksonObjectMapper()
-        .readValue<List<FileName>>(ProcessBuilder("python3", SNARK_PARSER, string)
-        .redirectOutput(ProcessBuilder.Redirect.PIPE)
-        .redirectError(ProcessBuilder.Redirect.INHERIT)
-        .start().inputStream.bufferedReader().readText())
-}
\ No newline at end of file
+// the same file included from different documents must have the same name
+internal fun resolveInclude(path: Path, file: FileName): FileName = path.resolve(file).normalize().toString()
+
+internal fun fillDependencies(
+        parsed: ParsedDocument,
+        dependencies: MutableList<DependencyGraphEdge>,
+        path: Path) {
+    for (include in parsed.includes) {
+        val parentNode = include.parent.fold<Int, MdAstParent>(parsed.ast) { node, index ->
+            node.children[index] as MdAstParent
+        }
+        val includeList = include.files.map { resolveInclude(path, it) }
+
+        dependencies += IncludeDependency(parentNode, parentNode.children[include.child], includeList)
+    }
+}
+
+private const val INCLUDE_COMMAND = "@include("
+
+// separators allowed around include commands, '|' is accepted for compatibility with the former parser
+private fun isIncludeSeparator(char: Char) = char == '\n' || char == '\t' || char == ' ' || char == '|'
+
+private fun isIncludeFileChar(char: Char) =
+    char in 'a'..'z' || char in '0'..'9' || char == '.' || char == '_' || char == '/' || char == '|'
+
+/**
+ * Files of include commands in text of a node. Text mentioning @include in any case must consist only of include commands
+ * separated by whitespace, otherwise [IllegalArgumentException] is thrown.
+ */
+public fun getIncludeFiles(string: String): List<FileName> {
+    if (!string.contains("@include", ignoreCase = true)) return emptyList()
+
+    val files = mutableListOf<FileName>()
+    var index = 0
+    while (true) {
+        while (index < string.length && isIncludeSeparator(string[index])) index++
+        if (index == string.length) return files
+
+        require(string.startsWith(INCLUDE_COMMAND, index)) { "Illformed string" }
+        val start = index + INCLUDE_COMMAND.length
+        index = start
+        while (index < string.length && isIncludeFileChar(string[index])) index++
+        require(index < string.length && string[index] == ')') { "Illformed string" }
+        files += string.substring(start, index)
+        index++
+    }
+}
@@ -0,0 +1,155 @@
+package documentBuilder
+
+import kotlinx.coroutines.*
+import kotlinx.coroutines.channels.Channel
+import java.io.Closeable
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.IOException
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.seconds
+
+private val SNARK_RENDER_WORKER = "snark-document-builder/src/main/nodejs/RenderWorker.js"
+
+public const val DEFAULT_RENDER_WORKERS: Int = 2
+
+private const val REQUEST_HTML = 'h'.code
+private const val REQUEST_MARKDOWN = 'm'.code
+private const val REQUEST_PING = 'p'.code
+private const val REPLY_OK = 'o'.code
+private const val REPLY_ERROR = 'e'.code
+
+/**
+ * Error reported by render worker, the worker itself remains usable
+ */
+public class RenderException(message: String) : Exception(message)
+
+/**
+ * Node process running RenderWorker.js, it handles one request at a time.
+ */
+private class NodeWorker(script: String) : Closeable {
+    private val process = ProcessBuilder("node", script)
+        .redirectError(ProcessBuilder.Redirect.INHERIT)
+        .start()
+    private val input = DataOutputStream(process.outputStream.buffered())
+    private val output = DataInputStream(process.inputStream.buffered())
+
+    // System.nanoTime of the last successful exchange
+    var lastUsed = System.nanoTime()
+        private set
+
+    val isAlive: Boolean get() = process.isAlive
+
+    // blocking, must be called from IO dispatcher
+    fun exchange(request: Int, payload: ByteArray): ByteArray {
+        input.writeByte(request)
+        input.writeInt(payload.size)
+        input.write(payload)
+        input.flush()
+
+        val reply = output.readUnsignedByte()
+        val result = ByteArray(output.readInt())
+        output.readFully(result)
+        lastUsed = System.nanoTime()
+        return when (reply) {
+            REPLY_OK -> result
+            REPLY_ERROR -> throw RenderException(String(result))
+            else -> throw IOException("Unexpected reply from render worker: $reply")
+        }
+    }
+
+    override fun close() {
+        process.destroyForcibly()
+    }
+}
+
+/**
+ * Pool of at most [size] persistent node processes rendering markdown AST, they are started on demand.
+ * AST is passed through process stdin, so its size is not limited by command line length.
+ *
+ * A worker is replaced if its request fails or takes longer than [requestTimeout].
+ * Worker idle for more than [healthCheckInterval] is checked with a ping before use.
+ */
+public class NodeWorkerPool(
+    private val size: Int = DEFAULT_RENDER_WORKERS,
+    private val script: String = SNARK_RENDER_WORKER,
+    private val requestTimeout: Duration = 60.seconds,
+    private val healthCheckInterval: Duration = 30.seconds,
+    private val healthCheckTimeout: Duration = 5.seconds,
+) : Closeable {
+    init {
+        require(size > 0) { "Pool size must be positive" }
+    }
+
+    // exchanges are run outside of caller scope, so a blocked read does not delay caller cancellation
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+
+    // null is a free slot for a worker which is not started yet or was discarded
+    private val slots = Channel<NodeWorker?>(size).apply {
+        repeat(size) { trySend(null) }
+    }
+
+    private suspend fun NodeWorker.call(request: Int, payload: ByteArray, timeout: Duration): ByteArray {
+        val reply = scope.async { exchange(request, payload) }
+        return withTimeout(timeout) { reply.await() }
+    }
+
+    private suspend fun healthy(worker: NodeWorker): Boolean = worker.isAlive && (
+            System.nanoTime() - worker.lastUsed < healthCheckInterval.inWholeNanoseconds || try {
+                worker.call(REQUEST_PING, ByteArray(0), healthCheckTimeout)
+                true
+            } catch (ex: IOException) {
+                false
+            } catch (ex: TimeoutCancellationException) {
+                false
+            })
+
+    private suspend fun request(request: Int, payload: ByteArray): ByteArray {
+        var worker = slots.receive()
+        try {
+            if (worker != null && !healthy(worker)) {
+                worker.close()
+                worker = null
+            }
+            val current = worker ?: withContext(Dispatchers.IO) { NodeWorker(script) }
+            worker = current
+            return current.call(request, payload, requestTimeout)
+        } catch (ex: Throwable) {
+            // state of the stream is unknown after a failed exchange, killing the process also unblocks its reader
+            if (ex !is RenderException) {
+                worker?.close()
+                worker = null
+            }
+            throw ex
+        } finally {
+            // pool may be closed meanwhile
+            if (slots.trySend(worker).isFailure) worker?.close()
+        }
+    }
+
+    public suspend fun renderHtml(astJson: String): String =
+        String(request(REQUEST_HTML, astJson.toByteArray()))
+
+    public suspend fun renderMarkdown(astJson: String): String =
+        String(request(REQUEST_MARKDOWN, astJson.toByteArray()))
+
+    // true if a worker is able to answer a request
+    public suspend fun ping(): Boolean = try {
+        request(REQUEST_PING, ByteArray(0))
+        true
+    } catch (ex: IOException) {
+        false
+    } catch (ex: TimeoutCancellationException) {
+        false
+    }
+
+    override fun close() {
+        scope.cancel()
+        slots.close()
+        while (true) {
+            val result = slots.tryReceive()
+            if (result.isClosed || result.isFailure) break
+            result.getOrNull()?.close()
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package documentBuilder
+
+import com.fasterxml.jackson.core.JacksonException
+import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
+import com.fasterxml.jackson.module.kotlin.readValue
+import space.kscience.snark.storage.Directory
+import space.kscience.snark.storage.get
+import space.kscience.snark.storage.put
+import space.kscience.snark.storage.stat
+import java.security.MessageDigest
+import java.util.concurrent.atomic.AtomicLong
+
+// must be increased when parser output or include rules change, so that old entries are not used
+private const val PARSE_CACHE_VERSION = 2
+
+internal fun sha256(bytes: ByteArray): String =
+    MessageDigest.getInstance("SHA-256").digest(bytes).joinToString("") { "%02x".format(it) }
+
+/**
+ * Persistent cache of parsed markdown files.
+ *
+ * Entries are keyed by hash of file content and stored in [directory], so they survive restarts
+ * and are shared by HTML and LaTeX builds.
+ */
+public class ParseCache(private val directory: Directory) {
+    private val mapper = jacksonObjectMapper()
+
+    public val hits: AtomicLong = AtomicLong()
+    public val misses: AtomicLong = AtomicLong()
+
+    private fun key(mdFile: ByteArray): String = "v$PARSE_CACHE_VERSION/${sha256(mdFile)}.json"
+
+    /**
+     * Parsed document for content of [mdFile]. Every call returns a new AST, which can be modified by the caller.
+     */
+    internal suspend fun getOrParse(
+        mdFile: ByteArray,
+        parse: suspend (ByteArray) -> ParsedDocument = { parseDocument(it) },
+    ): ParsedDocument {
+        val key = key(mdFile)
+        if (directory.stat(key) != null) {
+            try {
+                val cached = mapper.readValue<ParsedDocument>(directory.get(key).use { it.readAll() })
+                hits.incrementAndGet()
+                return cached
+            } catch (ex: JacksonException) {
+                // damaged entry is replaced below
+            }
+        }
+        misses.incrementAndGet()
+        val parsed = parse(mdFile)
+        directory.put(key).use { it.write(mapper.writeValueAsBytes(parsed)) }
+        return parsed
+    }
+}
@@ -0,0 +1,68 @@
+package documentBuilder
+
+import space.kscience.snark.storage.Directory
+import space.kscience.snark.storage.get
+import space.kscience.snark.storage.put
+import space.kscience.snark.storage.stat
+import java.util.concurrent.atomic.AtomicLong
+
+// must be increased when renderers change, so that old entries are not used
+private const val RENDER_CACHE_VERSION = 2
+
+// stored entries start with hex SHA-256 of the output and a line break
+private const val HASH_HEADER_SIZE = 65
+
+public const val DEFAULT_RENDER_CACHE_ENTRIES: Int = 64
+
+/**
+ * Cache of rendered documents keyed by [BuiltDocument.fingerprint], so any change of a document or its includes
+ * leads to a new key and old entries are never served.
+ *
+ * At most [capacity] recently used entries are kept in memory, all entries are also stored in [directory] if it is given.
+ * Stored entries carry a hash of the output, a truncated or damaged entry is rendered again. Local [directory] should
+ * use atomic writes, so that readers do not see an entry while it is written.
+ */
+public class RenderCache(
+    private val capacity: Int = DEFAULT_RENDER_CACHE_ENTRIES,
+    private val directory: Directory? = null,
+) {
+    private val memory = object : LinkedHashMap<String, ByteArray>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, ByteArray>): Boolean = size > capacity
+    }
+
+    public val hits: AtomicLong = AtomicLong()
+    public val misses: AtomicLong = AtomicLong()
+
+    private fun key(format: String, fingerprint: String): String = "v$RENDER_CACHE_VERSION/$format/$fingerprint"
+
+    // output of a stored entry or null if the entry does not match its hash
+    private fun unpack(stored: ByteArray): ByteArray? {
+        if (stored.size < HASH_HEADER_SIZE) return null
+        val output = stored.copyOfRange(HASH_HEADER_SIZE, stored.size)
+        return output.takeIf { sha256(it) == stored.decodeToString(0, HASH_HEADER_SIZE - 1) }
+    }
+
+    /**
+     * Output of rendering document with [fingerprint] to [format]. Returned arrays are shared and must not be modified.
+     */
+    internal suspend fun getOrRender(format: String, fingerprint: String, render: suspend () -> ByteArray): ByteArray {
+        val key = key(format, fingerprint)
+        synchronized(memory) { memory[key] }?.let {
+            hits.incrementAndGet()
+            return it
+        }
+
+        val stored = directory?.takeIf { it.stat(key) != null }?.get(key)?.use { it.readAll() }?.let(::unpack)
+        if (stored != null) {
+            hits.incrementAndGet()
+            synchronized(memory) { memory[key] = stored }
+            return stored
+        }
+
+        misses.incrementAndGet()
+        val output = render()
+        directory?.put(key)?.use { it.write("${sha256(output)}\n".encodeToByteArray() + output) }
+        synchronized(memory) { memory[key] = output }
+        return output
+    }
+}
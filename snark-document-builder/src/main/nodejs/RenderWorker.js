@@ -0,0 +1,62 @@
+// Long-lived renderer used by NodeWorkerPool.kt
+//
+// Requests and replies are frames of one tag byte, 4 bytes of big-endian payload length and UTF-8 payload.
+// Requests: 'h' renders AST in payload to HTML, 'm' renders it to markdown, 'p' is a health check.
+// Replies: 'o' with result, 'e' with error message. Nothing else may be written to stdout.
+
+const HEADER_SIZE = 5
+
+// renderers are loaded on first use, so health checks do not depend on them
+const renderers = {
+    h: async (ast) => {
+        const {toHast} = await import('mdast-util-to-hast')
+        const {toHtml} = await import('hast-util-to-html')
+        return toHtml(toHast(ast))
+    },
+    m: async (ast) => {
+        const {toMarkdown} = await import('mdast-util-to-markdown')
+        return toMarkdown(ast)
+    },
+}
+
+function reply(tag, text) {
+    const payload = Buffer.from(text, 'utf8')
+    const header = Buffer.alloc(HEADER_SIZE)
+    header.write(tag, 0, 'latin1')
+    header.writeUInt32BE(payload.length, 1)
+    process.stdout.write(Buffer.concat([header, payload]))
+}
+
+async function handle(tag, payload) {
+    if (tag === 'p') {
+        reply('o', '')
+        return
+    }
+    try {
+        const render = renderers[tag]
+        if (render === undefined)
+            throw new Error(`Unknown request ${tag}`)
+        reply('o', await render(JSON.parse(payload.toString('utf8'))))
+    } catch (error) {
+        reply('e', String(error && error.stack || error))
+    }
+}
+
+async function main() {
+    let buffer = Buffer.alloc(0)
+    // requests are handled one by one in order of arrival
+    for await (const chunk of process.stdin) {
+        buffer = buffer.length === 0 ? chunk : Buffer.concat([buffer, chunk])
+        while (buffer.length >= HEADER_SIZE) {
+            const length = buffer.readUInt32BE(1)
+            if (buffer.length < HEADER_SIZE + length)
+                break
+            const tag = buffer.toString('latin1', 0, 1)
+            const payload = buffer.subarray(HEADER_SIZE, HEADER_SIZE + length)
+            buffer = buffer.subarray(HEADER_SIZE + length)
+            await handle(tag, payload)
+        }
+    }
+}
+
+main()
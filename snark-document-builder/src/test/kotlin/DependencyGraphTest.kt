@@ -0,0 +1,105 @@
+package documentBuilder
+
+import kotlinx.coroutines.runBlocking
+import space.kscience.snark.storage.Directory
+import space.kscience.snark.storage.memory.inMemoryStorage
+import space.kscience.snark.storage.put
+import kotlin.io.path.Path
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+
+class DependencyGraphTest {
+    private suspend fun Directory.document(path: String, text: String) {
+        put("$path/main.md").use { it.write(text.encodeToByteArray()) }
+    }
+
+    private fun leaves(element: MdAstElement): Int = when (element) {
+        is MdAstParent -> element.children.sumOf { leaves(it) }
+        else -> 1
+    }
+
+    @Test
+    fun sharedIncludesAreLoadedOnce() = runBlocking {
+        val storage = inMemoryStorage()
+        storage.document("doc", "# Doc\n\n@include(b)\n\n@include(c)\n")
+        storage.document("doc/b", "# B\n\n@include(d)\n")
+        storage.document("doc/c", "# C\n\n@include(../b/d)\n")
+        storage.document("doc/b/d", "# D\n")
+
+        val cache = ParseCache(inMemoryStorage())
+        val graph = buildDependencyGraph(storage, Path("doc"), cache, concurrency = 2)
+
+        assertEquals(setOf("doc", "doc/b", "doc/c", "doc/b/d"), graph.nodes.keys)
+        assertEquals(listOf("doc/b", "doc/c"), graph.nodes.getValue("doc").dependencies.flatMap {
+            (it as IncludeDependency).includeList
+        })
+        assertEquals(4, cache.misses.get())
+    }
+
+    @Test
+    fun cyclesTerminate() = runBlocking {
+        val storage = inMemoryStorage()
+        storage.document("a", "@include(b)\n")
+        storage.document("a/b", "@include(..)\n")
+
+        val graph = buildDependencyGraph(storage, Path("a"))
+
+        assertEquals(setOf("a", "a/b"), graph.nodes.keys)
+    }
+
+    @Test
+    fun sharedIncludesAreExpandedOnce() = runBlocking {
+        val storage = inMemoryStorage()
+        // every level includes the next one twice
+        val depth = 12
+        storage.document("doc", "@include(l1)\n\n@include(l1)\n")
+        var path = "doc/l1"
+        for (level in 1 until depth) {
+            storage.document(path, "@include(../l${level + 1})\n\n@include(../l${level + 1})\n")
+            path = "doc/l${level + 1}"
+        }
+        storage.document(path, "leaf\n")
+
+        val graph = buildDependencyGraph(storage, Path("doc"))
+        val document = GraphManager(graph).getAstRootDocument("doc")
+
+        assertEquals(depth + 1, graph.nodes.size)
+        assertEquals(1 shl depth, leaves(document))
+    }
+
+    @Test
+    fun cyclesAreReported() = runBlocking {
+        val storage = inMemoryStorage()
+        storage.document("a", "@include(b)\n")
+        storage.document("a/b", "@include(..)\n")
+
+        val exception = assertFailsWith<CyclicIncludeException> {
+            GraphManager(buildDependencyGraph(storage, Path("a"))).buildDocument("a")
+        }
+        assertEquals(listOf("a", "a/b", "a"), exception.cycle)
+    }
+
+    @Test
+    fun includesOfOneParentAreSpliced() {
+        val position = Position(Point(1, 1, 0), Point(1, 1, 0))
+        fun text(value: String) = MdAstText(value, position)
+
+        val includes = List(3) { text("@include(part$it)") }
+        val paragraph = MdAstParagraph(listOf(text("first")) + includes.flatMap { listOf(it, text("between")) }, position)
+        val parts = List(3) { "part$it" to DependencyGraphNode(MdAstRoot(listOf(text("$it.1"), text("$it.2")), position), emptyList()) }
+        val graph = DependencyGraph(
+            mapOf("doc" to DependencyGraphNode(
+                MdAstRoot(listOf(paragraph), position),
+                includes.mapIndexed { index, include -> IncludeDependency(paragraph, include, listOf("part$index")) }
+            )) + parts
+        )
+
+        GraphManager(graph).buildDocument("doc")
+
+        assertEquals(
+            listOf("first", "0.1", "0.2", "between", "1.1", "1.2", "between", "2.1", "2.2", "between"),
+            paragraph.children.map { (it as MdAstText).value }
+        )
+    }
+}
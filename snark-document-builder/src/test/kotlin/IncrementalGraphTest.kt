@@ -0,0 +1,97 @@
+package documentBuilder
+
+import kotlinx.coroutines.runBlocking
+import space.kscience.snark.storage.Directory
+import space.kscience.snark.storage.memory.inMemoryStorage
+import space.kscience.snark.storage.put
+import kotlin.io.path.Path
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertNotEquals
+import kotlin.test.assertNotSame
+import kotlin.test.assertSame
+
+class IncrementalGraphTest {
+    private suspend fun Directory.document(path: String, text: String) {
+        put("$path/main.md").use { it.write(text.encodeToByteArray()) }
+    }
+
+    private fun MdAstElement.child(index: Int) = (this as MdAstParent).children[index]
+
+    @Test
+    fun onlyChangedFilesAreRebuilt() = runBlocking {
+        val storage = inMemoryStorage()
+        storage.document("doc", "@include(b)\n\n@include(c)\n")
+        storage.document("doc/b", "# B\n")
+        storage.document("doc/c", "# C\n")
+
+        val cache = ParseCache(inMemoryStorage())
+        val graph = IncrementalGraph(storage, cache)
+        val first = graph.document(Path("doc"))
+        assertSame(first, graph.document(Path("doc")))
+        assertEquals(1, graph.version)
+        assertEquals(3, cache.misses.get())
+
+        // same content with new metadata is not parsed again
+        storage.document("doc/c", "# C\n")
+        assertSame(first, graph.document(Path("doc")))
+        assertEquals(1, graph.version)
+
+        storage.document("doc/c", "# Changed\n")
+        val second = graph.document(Path("doc"))
+        assertEquals(2, graph.version)
+        assertEquals(4, cache.misses.get())
+        assertNotSame(first, second)
+        assertSame(first.child(0).child(0), second.child(0).child(0))
+        assertEquals("Changed", (second.child(1).child(0).child(0) as MdAstText).value)
+    }
+
+    @Test
+    fun newIncludesAreLoaded() = runBlocking {
+        val storage = inMemoryStorage()
+        storage.document("doc", "# Doc\n")
+        storage.document("doc/b", "# B\n")
+
+        val graph = IncrementalGraph(storage)
+        assertEquals(1, graph.document(Path("doc")).children.size)
+
+        storage.document("doc", "# Doc\n\n@include(b)\n")
+        val document = graph.document(Path("doc"))
+        assertEquals("B", (document.child(1).child(0).child(0) as MdAstText).value)
+    }
+
+    @Test
+    fun fingerprintCoversIncludes() = runBlocking {
+        val storage = inMemoryStorage()
+        storage.document("doc", "@include(b)\n")
+        storage.document("doc/b", "@include(c)\n")
+        storage.document("doc/b/c", "# C\n")
+        // the same content elsewhere
+        storage.document("copy", "@include(b)\n")
+        storage.document("copy/b", "@include(c)\n")
+        storage.document("copy/b/c", "# C\n")
+
+        val graph = IncrementalGraph(storage)
+        val first = graph.build(Path("doc")).fingerprint
+        assertEquals(first, graph.build(Path("doc")).fingerprint)
+        assertEquals(first, graph.build(Path("copy")).fingerprint)
+
+        storage.document("doc/b/c", "# Changed\n")
+        assertNotEquals(first, graph.build(Path("doc")).fingerprint)
+        assertEquals(first, graph.build(Path("copy")).fingerprint)
+    }
+
+    @Test
+    fun fingerprintFollowsIncludeOrder() = runBlocking {
+        val storage = inMemoryStorage()
+        // resolved names of the includes sort differently for the two documents
+        storage.document("s/d", "@include(b)\n\n@include(../e)\n")
+        storage.document("s/d/b", "# B\n")
+        storage.document("s/f", "@include(b)\n\n@include(../e)\n")
+        storage.document("s/f/b", "# B\n")
+        storage.document("s/e", "# E\n")
+
+        val graph = IncrementalGraph(storage)
+        assertEquals(graph.build(Path("s/d")).fingerprint, graph.build(Path("s/f")).fingerprint)
+    }
+}
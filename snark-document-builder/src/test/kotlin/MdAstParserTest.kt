@@ -0,0 +1,97 @@
+package documentBuilder
+
+import kotlinx.coroutines.runBlocking
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertIs
+
+class MdAstParserTest {
+    private val markdown = """
+        |# Title #
+        |
+        |Some *text*  
+        |  @include(a.md)
+        |
+        |> quote
+        |> line
+        |
+        |```kotlin meta x
+        |val a = 1
+        |```
+        |
+        |    indented
+        |    code
+        |
+        |Setext
+        |===
+    """.trimMargin()
+
+    @Test
+    fun blockStructure() {
+        val root = parseMarkdown(markdown)
+        assertEquals(Position(Point(1, 1, 0), Point(17, 4, markdown.length)), root.position)
+        assertEquals(
+            listOf(
+                MdAstHeading::class, MdAstParagraph::class, MdAstBlockquote::class,
+                MdAstCode::class, MdAstCode::class, MdAstHeading::class
+            ),
+            root.children.map { it::class }
+        )
+
+        val heading = assertIs<MdAstHeading>(root.children[0])
+        assertEquals(1, heading.depth)
+        assertEquals(Position(Point(1, 1, 0), Point(1, 10, 9)), heading.position)
+        val title = assertIs<MdAstText>(heading.children.single())
+        assertEquals("Title", title.value)
+        assertEquals(Position(Point(1, 3, 2), Point(1, 8, 7)), title.position)
+
+        val paragraph = assertIs<MdAstParagraph>(root.children[1])
+        val text = assertIs<MdAstText>(paragraph.children.single())
+        assertEquals("Some *text*\n@include(a.md)", text.value)
+        assertEquals(Position(Point(3, 1, 11), Point(4, 17, 41)), text.position)
+
+        val quote = assertIs<MdAstBlockquote>(root.children[2])
+        val quoted = assertIs<MdAstParagraph>(quote.children.single())
+        assertEquals("quote\nline", assertIs<MdAstText>(quoted.children.single()).value)
+
+        val fenced = assertIs<MdAstCode>(root.children[3])
+        assertEquals("kotlin", fenced.lang)
+        assertEquals("meta x", fenced.meta)
+        assertEquals("val a = 1", fenced.value)
+
+        val indented = assertIs<MdAstCode>(root.children[4])
+        assertEquals(null, indented.lang)
+        assertEquals("indented\ncode", indented.value)
+
+        val setext = assertIs<MdAstHeading>(root.children[5])
+        assertEquals("Setext", assertIs<MdAstText>(setext.children.single()).value)
+    }
+
+    @Test
+    fun escapesOutsideOfCodeSpans() {
+        val paragraph = assertIs<MdAstParagraph>(parseMarkdown("""\* `a\*b` \_ ``c\_`d``""").children.single())
+        assertEquals("""* `a\*b` _ ``c\_`d``""", assertIs<MdAstText>(paragraph.children.single()).value)
+    }
+
+    @Test
+    fun includeCommands() {
+        assertEquals(emptyList(), getIncludeFiles("no commands here"))
+        assertEquals(listOf("a.md", "dir/b_1"), getIncludeFiles("\n @include(a.md)\t@include(dir/b_1) \n"))
+        assertEquals(listOf("a|b"), getIncludeFiles("| @include(a|b)|"))
+        assertEquals(listOf(""), getIncludeFiles("@include()"))
+
+        for (illformed in listOf("text @include(a.md)", "@include(A.md)", "@INCLUDE(a.md)", "@include(a.md", "@include(a)b")) {
+            assertFailsWith<IllegalArgumentException>(illformed) { getIncludeFiles(illformed) }
+        }
+    }
+
+    @Test
+    fun includesAreLocated() = runBlocking {
+        val parsed = parseDocument("# Title\n\n> @include(a.md)\n\n@include(b.md) @include(c.md)\n".encodeToByteArray())
+        assertEquals(
+            listOf(IncludeLocation(listOf(1, 0), 0, listOf("a.md")), IncludeLocation(listOf(2), 0, listOf("b.md", "c.md"))),
+            parsed.includes
+        )
+    }
+}
@@ -0,0 +1,89 @@
+package documentBuilder
+
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.runBlocking
+import org.junit.jupiter.api.Assumptions.assumeTrue
+import org.junit.jupiter.api.BeforeEach
+import kotlin.io.path.Path
+import kotlin.io.path.createTempFile
+import kotlin.io.path.exists
+import kotlin.io.path.writeText
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+import kotlin.time.Duration.Companion.milliseconds
+
+class NodeWorkerPoolTest {
+    // tests are run either from the project root or from the module directory
+    private val worker = listOf("src/main/nodejs/RenderWorker.js", "snark-document-builder/src/main/nodejs/RenderWorker.js")
+        .first { Path(it).exists() }
+
+    // worker answering render requests with their payload, which does not need renderer modules
+    private fun echoWorker(): String = createTempFile(suffix = ".mjs").apply {
+        writeText(
+            """
+            let buffer = Buffer.alloc(0)
+            for await (const chunk of process.stdin) {
+                buffer = Buffer.concat([buffer, chunk])
+                while (buffer.length >= 5 && buffer.length >= 5 + buffer.readUInt32BE(1)) {
+                    const length = buffer.readUInt32BE(1)
+                    if (buffer.toString('latin1', 0, 1) === 'h') process.exit(1)
+                    const header = Buffer.from([111, 0, 0, 0, 0])
+                    header.writeUInt32BE(length, 1)
+                    process.stdout.write(Buffer.concat([header, buffer.subarray(5, 5 + length)]))
+                    buffer = buffer.subarray(5 + length)
+                }
+            }
+            """.trimIndent()
+        )
+        toFile().deleteOnExit()
+    }.toString()
+
+    @BeforeEach
+    fun requireNode() {
+        assumeTrue(runCatching { ProcessBuilder("node", "--version").start().waitFor() == 0 }.getOrDefault(false))
+    }
+
+    @Test
+    fun pingAndRenderErrors() = runBlocking<Unit> {
+        NodeWorkerPool(size = 1, script = worker).use { pool ->
+            assertTrue(pool.ping())
+            // rendering errors are reported, worker stays usable
+            assertFailsWith<RenderException> { pool.renderMarkdown("not a json") }
+            assertTrue(pool.ping())
+        }
+    }
+
+    @Test
+    fun largePayloads() = runBlocking {
+        NodeWorkerPool(size = 2, script = echoWorker()).use { pool ->
+            // far above command line length limit
+            val ast = "x".repeat(4 shl 20)
+            val results = List(4) { async { pool.renderMarkdown(ast + it) } }.awaitAll()
+            assertEquals(List(4) { ast + it }, results)
+        }
+    }
+
+    @Test
+    fun deadWorkersAreReplaced() = runBlocking {
+        NodeWorkerPool(size = 1, script = echoWorker()).use { pool ->
+            // echo worker exits on html requests
+            assertFailsWith<java.io.EOFException> { pool.renderHtml("{}") }
+            assertEquals("{}", pool.renderMarkdown("{}"))
+        }
+    }
+
+    @Test
+    fun hangingWorkersTimeOut() = runBlocking {
+        val script = createTempFile(suffix = ".mjs").apply {
+            writeText("setInterval(() => {}, 1000)")
+            toFile().deleteOnExit()
+        }
+        NodeWorkerPool(size = 1, script = script.toString(), requestTimeout = 500.milliseconds).use { pool ->
+            assertFalse(pool.ping())
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package documentBuilder
+
+import kotlinx.coroutines.runBlocking
+import space.kscience.snark.storage.memory.inMemoryStorage
+import kotlin.io.path.Path
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertNotSame
+import kotlin.test.assertSame
+
+class ParseCacheTest {
+    private val position = Position(Point(1, 1, 0), Point(1, 1, 0))
+
+    private fun parsed(text: String) = ParsedDocument(
+        MdAstRoot(
+            listOf(
+                MdAstHeading(1, listOf(MdAstText("Title", position)), position),
+                MdAstParagraph(listOf(MdAstText(text, position)), position)
+            ),
+            position
+        ),
+        listOf(IncludeLocation(listOf(1), 0, listOf("chapter")))
+    )
+
+    @Test
+    fun warmParseIsSkipped() = runBlocking {
+        val storage = inMemoryStorage()
+        var parses = 0
+        val parse: suspend (ByteArray) -> ParsedDocument = { parses++; parsed(it.decodeToString()) }
+        val content = "@include(chapter)".encodeToByteArray()
+
+        val first = ParseCache(storage).getOrParse(content, parse)
+        // new cache over the same directory behaves as after restart
+        val restarted = ParseCache(storage)
+        val second = restarted.getOrParse(content, parse)
+
+        assertEquals(1, parses)
+        assertEquals(1, restarted.hits.get())
+        assertEquals(first, second)
+        assertNotSame(second.ast, restarted.getOrParse(content, parse).ast)
+
+        restarted.getOrParse("@include(other)".encodeToByteArray(), parse)
+        assertEquals(2, parses)
+    }
+
+    @Test
+    fun dependenciesPointToCachedAst() {
+        val document = parsed("@include(chapter)")
+        val dependencies = mutableListOf<DependencyGraphEdge>()
+        fillDependencies(document, dependencies, Path("doc"))
+
+        val include = dependencies.single() as IncludeDependency
+        assertSame(document.ast.children[1], include.parentNode)
+        assertSame((document.ast.children[1] as MdAstParent).children[0], include.dependentNode)
+        assertEquals(listOf("doc/chapter"), include.includeList)
+    }
+}
@@ -0,0 +1,58 @@
+package documentBuilder
+
+import kotlinx.coroutines.runBlocking
+import space.kscience.snark.storage.get
+import space.kscience.snark.storage.memory.inMemoryStorage
+import space.kscience.snark.storage.put
+import kotlin.test.Test
+import kotlin.test.assertEquals
+
+class RenderCacheTest {
+    @Test
+    fun memoryTierIsBounded() = runBlocking {
+        val cache = RenderCache(capacity = 1)
+        var renders = 0
+        val render: suspend () -> ByteArray = { renders++; "<p>$renders</p>".encodeToByteArray() }
+
+        assertEquals("<p>1</p>", cache.getOrRender("html", "a", render).decodeToString())
+        assertEquals("<p>1</p>", cache.getOrRender("html", "a", render).decodeToString())
+        // format is a part of the key
+        cache.getOrRender("tex", "a", render)
+        cache.getOrRender("html", "a", render)
+
+        assertEquals(3, renders)
+        assertEquals(1, cache.hits.get())
+    }
+
+    @Test
+    fun directoryTierSurvivesRestart() = runBlocking {
+        val storage = inMemoryStorage()
+        var renders = 0
+        val render: suspend () -> ByteArray = { renders++; "<p>text</p>".encodeToByteArray() }
+
+        RenderCache(directory = storage).getOrRender("html", "a", render)
+        val restarted = RenderCache(directory = storage)
+
+        assertEquals("<p>text</p>", restarted.getOrRender("html", "a", render).decodeToString())
+        assertEquals(1, renders)
+        assertEquals(1, restarted.hits.get())
+    }
+
+    @Test
+    fun damagedEntryIsRenderedAgain() = runBlocking {
+        val storage = inMemoryStorage()
+        var renders = 0
+        val render: suspend () -> ByteArray = { renders++; "<p>text</p>".encodeToByteArray() }
+
+        RenderCache(directory = storage).getOrRender("html", "a", render)
+        val key = "v2/html/a"
+        // entry cut short by an interrupted write
+        val stored = storage.get(key).use { it.readAll() }
+        storage.put(key).use { it.write(stored.copyOf(stored.size - 3)) }
+
+        val restarted = RenderCache(directory = storage)
+        assertEquals("<p>text</p>", restarted.getOrRender("html", "a", render).decodeToString())
+        assertEquals(2, renders)
+        assertEquals(0, restarted.hits.get())
+    }
+}
@@ -16,11 +16,13 @@ import java.nio.file.Path
 import kotlin.io.createTempFile
 import kotlin.io.writeBytes
 import kotlin.io.path.Path
+import kotlin.io.path.deleteIfExists
 
 public interface DataHolder {
     public suspend fun init(relativePath: Path) : Directory
 
     public suspend fun represent(relativePath: Path): String
+    // returned file is deleted after it is sent
     public suspend fun toPdf(relativePath: Path) : Path
 }
 
@@ -41,7 +43,12 @@ public class SNARKServer(private val dataHolder: DataHolder, private val port: I
             ContentDisposition.Attachment.withParameter(ContentDisposition.Parameters.FileName, "output.tex")
                 .toString()
         )
-        call.respondFile(dataHolder.toPdf(relativePath).toFile())
+        val file = dataHolder.toPdf(relativePath)
+        try {
+            call.respondFile(file.toFile())
+        } finally {
+            file.deleteIfExists()
+        }
         call.respondRedirect("/")
 
     }
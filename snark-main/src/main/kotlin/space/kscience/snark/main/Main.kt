@@ -1,9 +1,9 @@
 package space.kscience.snark.main
 
 import kotlinx.coroutines.coroutineScope
-import kotlinx.coroutines.launch
 import kotlinx.coroutines.runBlocking
 import space.kscience.snark.ktor.SNARKServer
+import space.kscience.snark.storage.local.LocalWriteMode
 import space.kscience.snark.storage.local.localStorage
 import kotlin.io.path.Path
 
@@ -12,8 +12,11 @@ fun main(): Unit = runBlocking {
     // Parse config, create driver
     val port = 8080
     val directory = localStorage(Path("./rundata"))
-    val server = SNARKServer(ServerDataHolder(directory), port)
-    launch {
-        server.run()
+    val parseCache = localStorage(Path("./cache/parse"))
+    // rendered output is served as soon as it exists, so it must never be seen partially written
+    val renderCache = localStorage(Path("./cache/render"), writeMode = LocalWriteMode.ATOMIC)
+    // render workers are stopped once the server stops
+    ServerDataHolder(directory, parseCache, renderCache).use { dataHolder ->
+        SNARKServer(dataHolder, port).run()
     }
 }
\ No newline at end of file
@@ -3,18 +3,38 @@ package space.kscience.snark.main
 import space.kscience.snark.ktor.DataHolder
 import space.kscience.snark.storage.Directory
 import documentBuilder.*
+import java.io.Closeable
 import java.nio.file.Path
 
-internal class ServerDataHolder(private val directory: Directory): DataHolder {
+internal class ServerDataHolder(
+    private val directory: Directory,
+    cacheDirectory: Directory,
+    renderCacheDirectory: Directory? = null,
+    renderWorkers: Int = DEFAULT_RENDER_WORKERS
+): DataHolder, Closeable {
+    // parsed markdown is shared by HTML and LaTeX builds and survives restarts
+    private val parseCache = ParseCache(cacheDirectory)
+
+    // documents are rebuilt only where files changed since the previous request
+    private val graph = IncrementalGraph(directory, parseCache)
+
+    private val renderPool = NodeWorkerPool(renderWorkers)
+
+    // output for unchanged documents is served without rendering
+    private val renderCache = RenderCache(directory = renderCacheDirectory)
 
     override suspend fun init(relativePath: Path): Directory = directory
 
 
     override suspend fun represent(relativePath: Path): String {
-        return buildDocument(directory, relativePath)
+        return buildDocument(graph, relativePath, renderPool, renderCache)
     }
 
     override suspend fun toPdf(relativePath: Path) :  Path {
-        return buildLatex(directory, relativePath)
+        return buildLatex(graph, relativePath, renderPool, renderCache)
+    }
+
+    override fun close() {
+        renderPool.close()
     }
 }
\ No newline at end of file
@@ -0,0 +1,21 @@
+plugins {
+    id("space.kscience.gradle.jvm")
+    id("me.champeau.jmh") version "0.6.8"
+}
+
+val coroutinesVersion = space.kscience.gradle.KScienceVersions.coroutinesVersion
+
+dependencies {
+    jmh(projects.snarkStorageDriver)
+    jmh(testFixtures(projects.snarkStorageDriver))
+    jmh("org.jetbrains.kotlinx:kotlinx-coroutines-core:$coroutinesVersion")
+}
+
+// run with ./gradlew :snark-storage-benchmarks:jmh, a subset is selected by -PjmhIncludes=<regex>
+jmh {
+    jmhVersion.set("1.36")
+    warmupIterations.set(2)
+    iterations.set(5)
+    fork.set(1)
+    findProperty("jmhIncludes")?.let { includes.set(listOf(it.toString())) }
+}
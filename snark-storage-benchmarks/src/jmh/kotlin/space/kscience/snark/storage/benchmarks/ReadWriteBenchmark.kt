@@ -0,0 +1,70 @@
+package space.kscience.snark.storage.benchmarks
+
+import kotlinx.coroutines.flow.asFlow
+import kotlinx.coroutines.flow.map
+import kotlinx.coroutines.runBlocking
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.infra.Blackhole
+import space.kscience.snark.storage.DEFAULT_CHUNK_SIZE
+import space.kscience.snark.storage.get
+import space.kscience.snark.storage.put
+import java.nio.ByteBuffer
+import java.util.concurrent.TimeUnit
+import kotlin.random.Random
+
+/**
+ * Throughput of reading and writing one file, small files show per-operation overhead and large ones bandwidth
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public open class ReadWriteBenchmark {
+
+    @Param("LOCAL", "S3", "MEMORY")
+    @JvmField
+    public var backend: Backend = Backend.LOCAL
+
+    @Param("4096", "16777216")
+    @JvmField
+    public var fileSize: Int = 0
+
+    private lateinit var workspace: Workspace
+    private lateinit var content: ByteArray
+
+    @Setup
+    public fun setUp(): Unit = runBlocking {
+        workspace = Workspace(backend)
+        content = Random(0).nextBytes(fileSize)
+        workspace.directory.put("sample").use { it.write(content) }
+    }
+
+    @TearDown
+    public fun tearDown() {
+        workspace.close()
+    }
+
+    @Benchmark
+    public fun write(): Unit = runBlocking {
+        workspace.directory.put("written").use { it.write(content) }
+    }
+
+    @Benchmark
+    public fun streamingWrite(): Unit = runBlocking {
+        val chunks = (content.indices step DEFAULT_CHUNK_SIZE).asFlow().map { offset ->
+            ByteBuffer.wrap(content, offset, minOf(DEFAULT_CHUNK_SIZE, content.size - offset))
+        }
+        workspace.directory.put("written").use { it.write(chunks) }
+    }
+
+    @Benchmark
+    public fun readAll(): ByteArray = runBlocking {
+        workspace.directory.get("sample").use { it.readAll() }
+    }
+
+    @Benchmark
+    public fun streamingRead(blackhole: Blackhole): Unit = runBlocking {
+        workspace.directory.get("sample").use { reader ->
+            reader.read().collect { blackhole.consume(it) }
+        }
+    }
+}
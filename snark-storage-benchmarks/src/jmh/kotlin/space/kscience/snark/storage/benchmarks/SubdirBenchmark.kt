@@ -0,0 +1,48 @@
+package space.kscience.snark.storage.benchmarks
+
+import kotlinx.coroutines.runBlocking
+import org.openjdk.jmh.annotations.*
+import space.kscience.snark.storage.FileInfo
+import space.kscience.snark.storage.div
+import space.kscience.snark.storage.put
+import space.kscience.snark.storage.stat
+import java.util.concurrent.TimeUnit
+
+/**
+ * Resolution of nested subdirectories followed by a metadata lookup of a file in the deepest one
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public open class SubdirBenchmark {
+
+    @Param("LOCAL", "S3", "MEMORY")
+    @JvmField
+    public var backend: Backend = Backend.LOCAL
+
+    @Param("1", "8")
+    @JvmField
+    public var depth: Int = 0
+
+    private lateinit var workspace: Workspace
+    private lateinit var names: List<String>
+
+    @Setup
+    public fun setUp(): Unit = runBlocking {
+        workspace = Workspace(backend)
+        names = List(depth) { "level$it" }
+        workspace.directory.put(names.joinToString("/") + "/file").use { it.write(byteArrayOf(0)) }
+    }
+
+    @TearDown
+    public fun tearDown() {
+        workspace.close()
+    }
+
+    @Benchmark
+    public fun resolveAndStat(): FileInfo? = runBlocking {
+        var dir = workspace.directory
+        for (name in names) dir = dir / name
+        dir.stat("file")
+    }
+}
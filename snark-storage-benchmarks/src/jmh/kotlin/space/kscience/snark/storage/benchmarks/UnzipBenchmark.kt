@@ -0,0 +1,73 @@
+package space.kscience.snark.storage.benchmarks
+
+import kotlinx.coroutines.runBlocking
+import org.openjdk.jmh.annotations.*
+import space.kscience.snark.storage.div
+import space.kscience.snark.storage.unzip.unzip
+import java.nio.file.Path
+import java.util.concurrent.TimeUnit
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
+import kotlin.io.path.createTempFile
+import kotlin.io.path.deleteIfExists
+import kotlin.io.path.outputStream
+import kotlin.random.Random
+
+/**
+ * Unzip of a synthetic archive with many small entries in nested directories
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public open class UnzipBenchmark {
+
+    @Param("LOCAL", "S3", "MEMORY")
+    @JvmField
+    public var backend: Backend = Backend.LOCAL
+
+    @Param("100", "1000")
+    @JvmField
+    public var entries: Int = 0
+
+    @Param("1024")
+    @JvmField
+    public var entrySize: Int = 0
+
+    private lateinit var archive: Path
+    private lateinit var workspace: Workspace
+    private var run = 0
+
+    @Setup(Level.Trial)
+    public fun createArchive() {
+        archive = createTempFile("snark-benchmark", ".zip")
+        val random = Random(0)
+        ZipOutputStream(archive.outputStream().buffered()).use { zip ->
+            repeat(entries) { index ->
+                zip.putNextEntry(ZipEntry("dir${index % 10}/inner${index % 7}/file$index.md"))
+                zip.write(random.nextBytes(entrySize))
+                zip.closeEntry()
+            }
+        }
+    }
+
+    // target is recreated every iteration, so in-memory backends do not accumulate unpacked files
+    @Setup(Level.Iteration)
+    public fun createWorkspace() {
+        workspace = Workspace(backend)
+    }
+
+    @TearDown(Level.Iteration)
+    public fun closeWorkspace() {
+        workspace.close()
+    }
+
+    @TearDown(Level.Trial)
+    public fun deleteArchive() {
+        archive.deleteIfExists()
+    }
+
+    @Benchmark
+    public fun unzip(): Unit = runBlocking {
+        unzip(archive.toString(), workspace.directory / "run${run++}")
+    }
+}
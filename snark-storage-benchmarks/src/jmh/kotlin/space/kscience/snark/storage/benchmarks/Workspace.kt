@@ -0,0 +1,34 @@
+package space.kscience.snark.storage.benchmarks
+
+import space.kscience.snark.storage.Directory
+import space.kscience.snark.storage.local.localStorage
+import space.kscience.snark.storage.memory.inMemoryStorage
+import space.kscience.snark.storage.s3.InMemoryS3
+import space.kscience.snark.storage.s3.s3Bucket
+import java.nio.file.Path
+import kotlin.io.path.createTempDirectory
+
+public enum class Backend {
+    LOCAL,
+    // S3 driver over in-process stand-in, measures the driver without network
+    S3,
+    MEMORY,
+}
+
+/**
+ * Empty directory of given backend, removed on close
+ */
+internal class Workspace(backend: Backend) : AutoCloseable {
+    private val tempDir: Path? = if (backend == Backend.LOCAL) createTempDirectory("snark-benchmark") else null
+
+    val directory: Directory = when (backend) {
+        Backend.LOCAL -> localStorage(tempDir!!)
+        Backend.S3 -> s3Bucket(InMemoryS3().client, "snark-benchmark")
+        Backend.MEMORY -> inMemoryStorage()
+    }
+
+    override fun close() {
+        directory.close()
+        tempDir?.toFile()?.deleteRecursively()
+    }
+}
@@ -1,5 +1,6 @@
 plugins {
     id("space.kscience.gradle.jvm")
+    `java-test-fixtures`
     `maven-publish`
 }
 
@@ -13,6 +14,9 @@ dependencies {
     // s3 Driver dependency
     implementation("aws.sdk.kotlin:s3:$awsSdkVersion")
 
+    // in-process S3 stand-in shared by tests and benchmarks
+    testFixturesApi("aws.sdk.kotlin:s3:$awsSdkVersion")
+
     testImplementation(kotlin("test"))
     testImplementation("org.junit.jupiter:junit-jupiter:5.8.1")
 }
@@ -1,10 +1,24 @@
 package space.kscience.snark.storage
 
 import aws.sdk.kotlin.services.s3.S3Client
+import aws.smithy.kotlin.runtime.http.engine.DefaultHttpEngine
+import aws.smithy.kotlin.runtime.net.Url
+import space.kscience.snark.storage.cache.cached
+import space.kscience.snark.storage.compression.CompressionCodec
+import space.kscience.snark.storage.compression.CompressionPolicy
+import space.kscience.snark.storage.compression.compressed
+import space.kscience.snark.storage.dedup.contentAddressedStorage
+import space.kscience.snark.storage.local.LocalReadMode
+import space.kscience.snark.storage.local.LocalWriteMode
 import space.kscience.snark.storage.local.localStorage
-import space.kscience.snark.storage.s3.s3Bucket
-import space.kscience.snark.storage.s3.s3Storage
+import space.kscience.snark.storage.memory.DEFAULT_MEMORY_STRIPES
+import space.kscience.snark.storage.memory.inMemoryStorage
+import space.kscience.snark.storage.metrics.MetricsSink
+import space.kscience.snark.storage.metrics.instrumented
+import space.kscience.snark.storage.s3.*
 import java.nio.file.Path
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.seconds
 
 private const val DEFAULT_REGION = "arctic-vault"
 
@@ -12,29 +26,157 @@ public sealed interface Config {
     public fun build(): Directory
 }
 
-public data class LocalConfig(val path: Path) : Config {
+public data class LocalConfig(
+    val path: Path,
+    val readMode: LocalReadMode = LocalReadMode.COPY,
+    val writeMode: LocalWriteMode = LocalWriteMode.DIRECT,
+) : Config {
     override fun build(): Directory {
-        return localStorage(path)
+        return localStorage(path, readMode, writeMode)
     }
 }
 
+/*
+ * Storage in memory, contents are lost when the directory is closed and collected
+ */
+public data class MemoryConfig(
+    val stripes: Int = DEFAULT_MEMORY_STRIPES,
+    val offHeap: Boolean = false,
+) : Config {
+    override fun build(): Directory {
+        return inMemoryStorage(stripes, offHeap)
+    }
+}
+
+/*
+ * Settings of http connection pool of S3 client
+ */
+public data class S3ConnectionOptions(
+    val maxConnections: Int = 64,
+    val connectTimeout: Duration = 5.seconds,
+    val connectionIdleTimeout: Duration = 60.seconds,
+)
+
 /*
  * ~/.aws/credentials.json file is required
  */
-internal fun buildS3Client(regionSpec: String): S3Client {
-    return S3Client {
-        region = regionSpec
+internal fun buildS3Client(key: S3ClientKey): S3ClientHandle {
+    val engine = DefaultHttpEngine {
+        maxConnections = key.connection.maxConnections.toUInt()
+        connectTimeout = key.connection.connectTimeout
+        connectionIdleTimeout = key.connection.connectionIdleTimeout
+    }
+    val client = S3Client {
+        region = key.region
+        key.endpoint?.let { endpointUrl = Url.parse(it) }
+        httpClientEngine = engine
+    }
+    return S3ClientHandle(client, engine)
+}
+
+/*
+ * Objects larger than multipartThreshold are uploaded in parts of partSize bytes,
+ * at most partConcurrency of them at the same time
+ */
+public data class S3UploadOptions(
+    val partSize: Int = 8 * 1024 * 1024,
+    val partConcurrency: Int = 4,
+    val multipartThreshold: Int = 16 * 1024 * 1024,
+) {
+    init {
+        require(partSize >= S3_MIN_PART_SIZE) { "S3 part size must be at least $S3_MIN_PART_SIZE bytes" }
+        require(partConcurrency > 0) { "Part concurrency must be positive" }
+    }
+}
+
+/*
+ * Objects are downloaded by ranged requests of rangeSize bytes, at most rangeConcurrency of them at the same time
+ */
+public data class S3DownloadOptions(
+    val rangeSize: Int = 4 * 1024 * 1024,
+    val rangeConcurrency: Int = 1,
+) {
+    init {
+        require(rangeSize > 0) { "Range size must be positive" }
+        require(rangeConcurrency > 0) { "Range concurrency must be positive" }
+    }
+}
+
+/*
+ * Directories built from S3 configs with the same region, endpoint and connection settings share one client,
+ * which is closed when all of them are closed
+ */
+public data class S3BucketConfig(
+    val bucketName: String,
+    val region: String = DEFAULT_REGION,
+    val upload: S3UploadOptions = S3UploadOptions(),
+    val download: S3DownloadOptions = S3DownloadOptions(),
+    val endpoint: String? = null,
+    val connection: S3ConnectionOptions = S3ConnectionOptions(),
+) : Config {
+    override fun build(): Directory {
+        return s3Bucket(sharedS3Clients.acquire(S3ClientKey(region, endpoint, connection)), bucketName, upload, download)
+    }
+}
+
+public data class S3ServiceConfig(
+    val region: String = DEFAULT_REGION,
+    val upload: S3UploadOptions = S3UploadOptions(),
+    val download: S3DownloadOptions = S3DownloadOptions(),
+    val endpoint: String? = null,
+    val connection: S3ConnectionOptions = S3ConnectionOptions(),
+) : Config {
+    override fun build(): Directory {
+        return s3Storage(sharedS3Clients.acquire(S3ClientKey(region, endpoint, connection)), upload, download)
     }
 }
 
-public data class S3BucketConfig(val bucketName: String, val region: String = DEFAULT_REGION) : Config {
+/*
+ * Directory of backend config with cached file contents, see Directory.cached
+ */
+public data class CachingConfig(
+    val backend: Config,
+    val memoryLimit: Long = 64L * 1024 * 1024,
+    val diskPath: Path? = null,
+    val diskLimit: Long = 1024L * 1024 * 1024,
+) : Config {
     override fun build(): Directory {
-        return s3Bucket(buildS3Client(region), bucketName)
+        return backend.build().cached(memoryLimit, diskPath, diskLimit)
     }
 }
 
-public data class S3ServiceConfig(val region: String = DEFAULT_REGION) : Config {
+/*
+ * Files of backend config stored by content, see contentAddressedStorage
+ */
+public data class ContentAddressedConfig(
+    val backend: Config,
+) : Config {
+    override fun build(): Directory {
+        return contentAddressedStorage(backend.build())
+    }
+}
+
+/*
+ * Directory of backend config reporting its operations to sink, see Directory.instrumented
+ */
+public data class InstrumentedConfig(
+    val backend: Config,
+    val sink: MetricsSink,
+) : Config {
+    override fun build(): Directory {
+        return backend.build().instrumented(sink)
+    }
+}
+
+/*
+ * Directory of backend config compressing files with given extensions, see Directory.compressed
+ */
+public data class CompressionConfig(
+    val backend: Config,
+    val extensions: Set<String> = CompressionPolicy.DEFAULT_EXTENSIONS,
+    val codec: CompressionCodec = CompressionCodec.GZIP,
+) : Config {
     override fun build(): Directory {
-        return s3Storage(buildS3Client(region))
+        return backend.build().compressed(CompressionPolicy.byExtension(extensions, codec))
     }
 }
@@ -1,8 +1,30 @@
 package space.kscience.snark.storage
 
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.FlowCollector
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.flow.transformWhile
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import kotlinx.coroutines.withContext
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import java.nio.channels.WritableByteChannel
 import java.nio.file.Path
+import java.time.Instant
 import kotlin.io.path.Path
 
+// default size of chunks in streaming reads and writes
+public const val DEFAULT_CHUNK_SIZE: Int = 64 * 1024
+
+// default number of files read or written at the same time by batch operations
+public const val DEFAULT_BATCH_CONCURRENCY: Int = 16
+
 public interface Directory : AutoCloseable {
     // get file from subtree
     public suspend fun get(filename: Path): FileReader
@@ -13,8 +35,32 @@ public interface Directory : AutoCloseable {
     // put file to subtree
     public suspend fun put(filename: Path): FileWriter
 
+    // read several files from subtree, no more than concurrency of them at the same time
+    public suspend fun getAll(
+        filenames: Collection<Path>,
+        concurrency: Int = DEFAULT_BATCH_CONCURRENCY,
+    ): Map<Path, ByteArray> = readInParallel(filenames, concurrency)
+
+    // write several files to subtree, no more than concurrency of them at the same time
+    public suspend fun putAll(
+        files: Map<Path, ByteArray>,
+        concurrency: Int = DEFAULT_BATCH_CONCURRENCY,
+    ): Unit = writeInParallel(files, concurrency)
+
+    // remove file from subtree, false if there was no such file
+    public suspend fun delete(filename: Path): Boolean
+
     public suspend fun getSubdir(path: Path): Directory
 
+    // metadata of all files in subtree under prefix directory, paths are relative to this directory
+    public fun list(prefix: Path = Path("")): Flow<FileInfo>
+
+    // metadata of file in subtree without reading it, null if there is no such file
+    public suspend fun stat(filename: Path): FileInfo?
+
+    // changes of files in subtree made after collection started, paths are relative to this directory
+    public fun watch(): Flow<ChangeEvent> = pollChanges()
+
     @Deprecated("Directories are created on put")
     public suspend fun createSubdir(dirname: String, ignoreIfExists: Boolean = false): Directory
 
@@ -29,18 +75,124 @@ public interface Directory : AutoCloseable {
 }
 
 
+// batch operations in terms of single file operations, for implementations and decorators of Directory
+internal suspend fun Directory.readInParallel(filenames: Collection<Path>, concurrency: Int): Map<Path, ByteArray> {
+    val permits = Semaphore(concurrency)
+    return coroutineScope {
+        filenames.distinct().map { filename ->
+            async {
+                permits.withPermit { filename to get(filename).use { it.readAll() } }
+            }
+        }.awaitAll().toMap()
+    }
+}
+
+internal suspend fun Directory.writeInParallel(files: Map<Path, ByteArray>, concurrency: Int) {
+    val permits = Semaphore(concurrency)
+    coroutineScope {
+        for ((filename, bytes) in files) {
+            launch {
+                permits.withPermit { put(filename).use { it.write(bytes) } }
+            }
+        }
+    }
+}
+
 public suspend fun Directory.get(filename: String): FileReader = get(Path(filename))
 
 public suspend fun Directory.put(filename: String): FileWriter = put(Path(filename))
 
+public suspend fun Directory.delete(filename: String): Boolean = delete(Path(filename))
+
+public fun Directory.list(prefix: String): Flow<FileInfo> = list(Path(prefix))
+
+public suspend fun Directory.stat(filename: String): FileInfo? = stat(Path(filename))
+
 public suspend operator fun Directory.div(path: Path): Directory = getSubdir(path)
 
 public suspend operator fun Directory.div(path: String): Directory = getSubdir(Path(path))
 
+public data class FileInfo(
+    val path: Path,
+    val size: Long,
+    val lastModified: Instant?,
+    // content tag given by storage (S3 ETag), null if storage has none
+    val eTag: String? = null,
+)
+
 public interface FileReader : AutoCloseable {
     public suspend fun readAll(): ByteArray
+
+    // cold flow of file content in chunks of at most chunkSize bytes, nothing is read before collection
+    public fun read(chunkSize: Int = DEFAULT_CHUNK_SIZE): Flow<ByteBuffer> = flow {
+        emitChunks(readAll(), chunkSize)
+    }
+
+    // same as read, but only bytes with offsets in range (e.g. from HTTP Range header), range is clipped to file size
+    public fun read(range: LongRange, chunkSize: Int = DEFAULT_CHUNK_SIZE): Flow<ByteBuffer> {
+        var position = 0L
+        return read(chunkSize).transformWhile { chunk ->
+            val start = maxOf(range.first - position, 0L)
+            val end = minOf(range.last - position + 1, chunk.remaining().toLong())
+            if (start < end) {
+                val part = chunk.duplicate()
+                part.limit(chunk.position() + end.toInt())
+                part.position(chunk.position() + start.toInt())
+                emit(part.slice())
+            }
+            position += chunk.remaining()
+            position <= range.last
+        }
+    }
+
+    // send whole content to the channel (e.g. a socket), returns number of bytes sent
+    public suspend fun transferTo(target: WritableByteChannel): Long {
+        var count = 0L
+        read().collect { buffer ->
+            withContext(Dispatchers.IO) {
+                while (buffer.hasRemaining()) {
+                    count += target.write(buffer)
+                }
+            }
+        }
+        return count
+    }
 }
 
 public interface FileWriter : AutoCloseable {
     public suspend fun write(bytes: ByteArray)
+
+    // replace file content with chunks of data, collected one by one
+    public suspend fun write(data: Flow<ByteBuffer>) {
+        write(data.toByteArray())
+    }
+}
+
+internal suspend fun FlowCollector<ByteBuffer>.emitChunks(bytes: ByteArray, chunkSize: Int) {
+    for (offset in bytes.indices step chunkSize) {
+        emit(ByteBuffer.wrap(bytes, offset, minOf(chunkSize, bytes.size - offset)).slice())
+    }
+}
+
+internal fun ByteArrayOutputStream.write(buffer: ByteBuffer) {
+    if (buffer.hasArray()) {
+        write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining())
+    } else {
+        val bytes = ByteArray(buffer.remaining())
+        buffer.duplicate().get(bytes)
+        write(bytes)
+    }
+}
+
+public suspend fun Flow<ByteBuffer>.toByteArray(): ByteArray {
+    val output = ByteArrayOutputStream()
+    collect { output.write(it) }
+    return output.toByteArray()
+}
+
+public suspend fun FileReader.readRange(range: LongRange): ByteArray = read(range).toByteArray()
+
+// stream content of reader to writer without loading it fully into memory
+public suspend fun FileReader.copyTo(writer: FileWriter, chunkSize: Int = DEFAULT_CHUNK_SIZE) {
+    writer.write(read(chunkSize))
 }
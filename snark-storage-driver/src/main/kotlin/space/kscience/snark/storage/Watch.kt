@@ -0,0 +1,47 @@
+package space.kscience.snark.storage
+
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.flow.toList
+import java.nio.file.Path
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.seconds
+
+// default period of listing in polling watch
+public val DEFAULT_POLL_INTERVAL: Duration = 1.seconds
+
+public enum class ChangeKind {
+    CREATED,
+    MODIFIED,
+    DELETED,
+}
+
+public data class ChangeEvent(
+    val kind: ChangeKind,
+    // path relative to watched directory
+    val path: Path,
+)
+
+private suspend fun Directory.snapshot(): Map<Path, FileInfo> = list().toList().associateBy { it.path }
+
+/**
+ * Watch directory by comparing its listings taken every [interval].
+ * Fallback for storages without change notifications, files are considered modified if their metadata differs.
+ */
+public fun Directory.pollChanges(interval: Duration = DEFAULT_POLL_INTERVAL): Flow<ChangeEvent> = flow {
+    var previous = snapshot()
+    while (true) {
+        delay(interval)
+        val current = snapshot()
+        current.forEach { (path, info) ->
+            when (previous[path]) {
+                null -> emit(ChangeEvent(ChangeKind.CREATED, path))
+                info -> {}
+                else -> emit(ChangeEvent(ChangeKind.MODIFIED, path))
+            }
+        }
+        previous.keys.filter { it !in current }.forEach { emit(ChangeEvent(ChangeKind.DELETED, it)) }
+        previous = current
+    }
+}
@@ -0,0 +1,127 @@
+package space.kscience.snark.storage.cache
+
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.emitAll
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.withContext
+import space.kscience.snark.storage.*
+import java.nio.ByteBuffer
+import java.nio.file.NoSuchFileException
+import java.nio.file.Path
+import kotlin.io.path.Path
+import kotlin.io.path.div
+
+/**
+ * Read-through cache over any [Directory]. Content is validated against metadata from [Directory.stat]
+ * on every read and invalidated on writes through this directory or its subdirectories.
+ */
+internal class CachingDirectory(
+    private val backend: Directory,
+    private val cache: ContentCache,
+    // path of this directory relative to the cached root, used as a key prefix
+    private val prefix: Path = Path(""),
+    // only the root directory owns the cache, subdirectories share it
+    private val onClose: () -> Unit = {},
+) : Directory by backend {
+
+    private inner class CachingFile(private val filename: Path) : FileReader {
+        private val key = prefix / filename
+
+        override suspend fun readAll(): ByteArray =
+            readAll(backend.stat(filename) ?: throw NoSuchFileException(key.toString()))
+
+        // metadata is fetched by the caller, so it is not requested twice
+        private suspend fun readAll(info: FileInfo): ByteArray {
+            withContext(Dispatchers.IO) { cache.get(key, info.version) }?.let { return it.copyOf() }
+            val bytes = backend.get(filename).use { it.readAll() }
+            withContext(Dispatchers.IO) { cache.put(key, info.version, bytes.copyOf()) }
+            return bytes
+        }
+
+        // files too big for the cache are streamed from backend
+        override fun read(chunkSize: Int): Flow<ByteBuffer> = flow {
+            val info = backend.stat(filename)
+            if (info != null && info.size <= cache.maxEntrySize) {
+                emitChunks(readAll(info), chunkSize)
+            } else {
+                emitAll(backend.get(filename).read(chunkSize))
+            }
+        }
+
+        override fun close() {}
+    }
+
+    private inner class InvalidatingWriter(private val key: Path, private val writer: FileWriter) : FileWriter {
+        override suspend fun write(bytes: ByteArray) {
+            cache.invalidate(key)
+            writer.write(bytes)
+            cache.invalidate(key)
+        }
+
+        override suspend fun write(data: Flow<ByteBuffer>) {
+            cache.invalidate(key)
+            writer.write(data)
+            cache.invalidate(key)
+        }
+
+        override fun close() {
+            writer.close()
+        }
+    }
+
+    override suspend fun get(filename: Path): FileReader = CachingFile(filename)
+
+    override suspend fun put(filename: Path): FileWriter = InvalidatingWriter(prefix / filename, backend.put(filename))
+
+    override suspend fun delete(filename: Path): Boolean {
+        cache.invalidate(prefix / filename)
+        return backend.delete(filename)
+    }
+
+    // batches go through the cache instead of being delegated to backend
+    override suspend fun getAll(filenames: Collection<Path>, concurrency: Int): Map<Path, ByteArray> =
+        readInParallel(filenames, concurrency)
+
+    override suspend fun putAll(files: Map<Path, ByteArray>, concurrency: Int): Unit =
+        writeInParallel(files, concurrency)
+
+    @Deprecated("Use put")
+    override suspend fun create(filename: String, ignoreIfExists: Boolean) {
+        cache.invalidate(prefix / filename)
+        @Suppress("DEPRECATION")
+        backend.create(filename, ignoreIfExists)
+    }
+
+    override fun close() {
+        try {
+            onClose()
+        } finally {
+            backend.close()
+        }
+    }
+
+    override suspend fun getSubdir(path: Path): Directory =
+        CachingDirectory(backend.getSubdir(path), cache, prefix / path)
+
+    @Deprecated("Directories are created on put")
+    override suspend fun createSubdir(dirname: String, ignoreIfExists: Boolean): Directory {
+        @Suppress("DEPRECATION")
+        val subdir = backend.createSubdir(dirname, ignoreIfExists)
+        return CachingDirectory(subdir, cache, prefix / dirname)
+    }
+}
+
+/**
+ * Wrap directory with a read-through cache of file contents. At most [memoryLimit] bytes are kept in memory,
+ * entries evicted from memory are spilled to [diskPath] up to [diskLimit] bytes if the path is given.
+ * Spilled entries are deleted when the returned directory is closed.
+ */
+public fun Directory.cached(
+    memoryLimit: Long = 64L * 1024 * 1024,
+    diskPath: Path? = null,
+    diskLimit: Long = 1024L * 1024 * 1024,
+): Directory {
+    val cache = ContentCache(memoryLimit, diskPath, diskLimit)
+    return CachingDirectory(this, cache, onClose = cache::close)
+}
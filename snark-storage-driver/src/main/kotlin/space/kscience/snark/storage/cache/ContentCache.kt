@@ -0,0 +1,235 @@
+package space.kscience.snark.storage.cache
+
+import space.kscience.snark.storage.FileInfo
+import java.io.IOException
+import java.nio.channels.FileChannel
+import java.nio.channels.OverlappingFileLockException
+import java.nio.file.NoSuchFileException
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.security.MessageDigest
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.io.path.*
+
+// content is considered unchanged while storage reports the same version
+internal data class FileVersion(val size: Long, val lastModified: java.time.Instant?, val eTag: String?)
+
+internal val FileInfo.version: FileVersion get() = FileVersion(size, lastModified, eTag)
+
+/**
+ * Two-tier LRU cache of file contents. Entries evicted from memory are spilled to [diskPath] if it is given.
+ * Each cache keeps its files in its own subdirectory, so several caches, also of different processes, may share the path.
+ * The subdirectory is deleted on [close], subdirectories left by caches which were not closed are deleted by the next
+ * cache created on the same path. File operations are blocking and should be called from IO dispatcher.
+ */
+internal class ContentCache(
+    private val memoryLimit: Long,
+    private val diskPath: Path?,
+    private val diskLimit: Long,
+) {
+    private class MemoryEntry(val version: FileVersion, val bytes: ByteArray)
+
+    private class DiskEntry(val version: FileVersion, val file: Path, val size: Long)
+
+    // access ordered maps, the first entry is the least recently used one
+    private val memory = LinkedHashMap<Path, MemoryEntry>(16, 0.75f, true)
+    private var memorySize = 0L
+    private val disk = LinkedHashMap<Path, DiskEntry>(16, 0.75f, true)
+    private var diskSize = 0L
+
+    val hits: AtomicLong = AtomicLong()
+    val misses: AtomicLong = AtomicLong()
+
+    // files of other caches are never touched while they are alive
+    private val spillDirectory: SpillDirectory? = diskPath?.let { SpillDirectory.open(it.createDirectories()) }
+    private val spillPath: Path? = spillDirectory?.path
+
+    @Volatile
+    private var closed = false
+
+    // biggest entry which is worth caching
+    val maxEntrySize: Long get() = maxOf(memoryLimit, if (spillPath != null) diskLimit else 0L)
+
+    fun get(key: Path, version: FileVersion): ByteArray? {
+        val diskEntry = synchronized(this) {
+            memory[key]?.let { entry ->
+                if (entry.version == version) {
+                    hits.incrementAndGet()
+                    return entry.bytes
+                }
+                removeFromMemory(key)
+            }
+            val entry = disk[key]
+            if (entry != null && entry.version != version) {
+                removeFromDisk(key)
+                null
+            } else {
+                entry
+            }
+        }
+        val bytes = diskEntry?.let {
+            try {
+                it.file.readBytes()
+            } catch (ex: NoSuchFileException) {
+                // evicted concurrently
+                null
+            }
+        }
+        if (bytes == null) {
+            misses.incrementAndGet()
+            return null
+        }
+        hits.incrementAndGet()
+        put(key, version, bytes)
+        return bytes
+    }
+
+    fun put(key: Path, version: FileVersion, bytes: ByteArray) {
+        if (bytes.size > maxEntrySize) return
+        val evicted = synchronized(this) {
+            removeFromMemory(key)
+            removeFromDisk(key)
+            memory[key] = MemoryEntry(version, bytes)
+            memorySize += bytes.size
+            val evicted = mutableListOf<Pair<Path, MemoryEntry>>()
+            val iterator = memory.entries.iterator()
+            while (memorySize > memoryLimit && iterator.hasNext()) {
+                val (evictedKey, entry) = iterator.next()
+                iterator.remove()
+                memorySize -= entry.bytes.size
+                evicted += evictedKey to entry
+            }
+            evicted
+        }
+        evicted.forEach { (evictedKey, entry) -> spill(evictedKey, entry) }
+    }
+
+    fun invalidate(key: Path) {
+        synchronized(this) {
+            removeFromMemory(key)
+            removeFromDisk(key)
+        }
+    }
+
+    private fun spill(key: Path, entry: MemoryEntry) {
+        val dir = spillPath ?: return
+        if (entry.bytes.size > diskLimit || closed) return
+        // every spill gets a unique file, which is indexed only after it is completely written
+        val file = createTempFile(dir, key.toString().sha256(), SPILL_SUFFIX)
+        file.writeBytes(entry.bytes)
+        val evicted = synchronized(this) {
+            // entry could be put again or invalidated while it was being written
+            if (memory.containsKey(key) || closed) return@synchronized listOf(file)
+            removeFromDisk(key)
+            disk[key] = DiskEntry(entry.version, file, entry.bytes.size.toLong())
+            diskSize += entry.bytes.size
+            val evicted = mutableListOf<Path>()
+            val iterator = disk.values.iterator()
+            while (diskSize > diskLimit && iterator.hasNext()) {
+                val diskEntry = iterator.next()
+                iterator.remove()
+                diskSize -= diskEntry.size
+                evicted.add(diskEntry.file)
+            }
+            evicted
+        }
+        evicted.forEach { it.deleteIfExists() }
+    }
+
+    /**
+     * Drop all entries and delete the spill directory. The cache stays usable, but nothing is spilled anymore.
+     */
+    fun close() {
+        synchronized(this) {
+            closed = true
+            memory.clear()
+            memorySize = 0
+            disk.clear()
+            diskSize = 0
+        }
+        spillDirectory?.delete()
+    }
+
+    private fun removeFromMemory(key: Path) {
+        memory.remove(key)?.let { memorySize -= it.bytes.size }
+    }
+
+    private fun removeFromDisk(key: Path) {
+        disk.remove(key)?.let {
+            diskSize -= it.size
+            it.file.deleteIfExists()
+        }
+    }
+
+    /**
+     * Spill directory of one cache. Lock on a file next to it is held while the cache is alive, directories without
+     * a held lock are left by caches which were not closed.
+     */
+    private class SpillDirectory(val path: Path, private val lockFile: Path, private val lock: FileChannel) {
+        // lock file is deleted last, so a directory without it is never in use
+        fun delete() {
+            path.toFile().deleteRecursively()
+            lockFile.deleteIfExists()
+            lock.close()
+        }
+
+        companion object {
+            const val PREFIX = "cache-"
+            const val LOCK_SUFFIX = ".lock"
+
+            // null if the lock is held, also by this process
+            private fun FileChannel.tryLockOrNull() = try {
+                tryLock()
+            } catch (ex: OverlappingFileLockException) {
+                null
+            }
+
+            private fun sweep(root: Path) {
+                root.listDirectoryEntries("$PREFIX*").forEach { entry ->
+                    if (entry.name.endsWith(LOCK_SUFFIX)) {
+                        val channel = try {
+                            FileChannel.open(entry, StandardOpenOption.WRITE)
+                        } catch (ex: IOException) {
+                            return@forEach
+                        }
+                        channel.use {
+                            if (it.tryLockOrNull() != null) {
+                                (root / entry.name.removeSuffix(LOCK_SUFFIX)).toFile().deleteRecursively()
+                                entry.deleteIfExists()
+                            }
+                        }
+                    } else if (!(root / "${entry.name}$LOCK_SUFFIX").exists()) {
+                        entry.toFile().deleteRecursively()
+                    }
+                }
+            }
+
+            fun open(root: Path): SpillDirectory {
+                sweep(root)
+                while (true) {
+                    // lock file is created before the directory, so a directory without it is always stale
+                    val lockFile = createTempFile(root, PREFIX, LOCK_SUFFIX)
+                    val channel = try {
+                        FileChannel.open(lockFile, StandardOpenOption.WRITE)
+                    } catch (ex: NoSuchFileException) {
+                        continue
+                    }
+                    // the file could be swept by another cache before it was locked
+                    if (channel.tryLockOrNull() == null || !lockFile.exists()) {
+                        channel.close()
+                        continue
+                    }
+                    val path = root / lockFile.name.removeSuffix(LOCK_SUFFIX)
+                    return SpillDirectory(path.createDirectories(), lockFile, channel)
+                }
+            }
+        }
+    }
+
+    private companion object {
+        const val SPILL_SUFFIX = ".cached"
+
+        fun String.sha256(): String =
+            MessageDigest.getInstance("SHA-256").digest(toByteArray()).joinToString("") { "%02x".format(it) }
+    }
+}
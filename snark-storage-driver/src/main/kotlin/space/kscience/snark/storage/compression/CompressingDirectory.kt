@@ -0,0 +1,178 @@
+package space.kscience.snark.storage.compression
+
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.mapNotNull
+import kotlinx.coroutines.withContext
+import space.kscience.snark.storage.*
+import java.nio.ByteBuffer
+import java.nio.file.FileAlreadyExistsException
+import java.nio.file.Path
+import kotlin.io.path.Path
+import kotlin.io.path.div
+import kotlin.io.path.extension
+import kotlin.io.path.name
+
+public enum class CompressionCodec(
+    // suffix appended to names of compressed files in backend
+    public val extension: String,
+    // value of HTTP Content-Encoding and Accept-Encoding headers
+    public val contentEncoding: String,
+) {
+    GZIP("gz", "gzip"),
+}
+
+/**
+ * Choice of codec for a file by its path relative to the root of compressed directory, null to store file as is.
+ * Decision must not change for existing files, otherwise they are looked up under a wrong name.
+ */
+public fun interface CompressionPolicy {
+    public fun codec(path: Path): CompressionCodec?
+
+    public companion object {
+        // text formats produced and served by snark
+        public val DEFAULT_EXTENSIONS: Set<String> = setOf("md", "json", "html", "htm", "css", "js", "svg", "txt", "xml", "tex")
+
+        public fun byExtension(
+            extensions: Set<String> = DEFAULT_EXTENSIONS,
+            codec: CompressionCodec = CompressionCodec.GZIP,
+        ): CompressionPolicy = CompressionPolicy { path ->
+            if (path.extension.lowercase() in extensions) codec else null
+        }
+    }
+}
+
+/**
+ * Reader giving access to file content in the form it is stored, e.g. to send it with HTTP Content-Encoding
+ */
+public interface EncodedFileReader : FileReader {
+    // codec of stored content, null if the file is stored as is
+    public val codec: CompressionCodec?
+
+    // stored bytes without decoding
+    public fun readEncoded(chunkSize: Int = DEFAULT_CHUNK_SIZE): Flow<ByteBuffer>
+}
+
+private class CompressedFile(private val stored: FileReader) : EncodedFileReader {
+    override val codec: CompressionCodec get() = CompressionCodec.GZIP
+
+    override suspend fun readAll(): ByteArray {
+        val bytes = stored.readAll()
+        return withContext(Dispatchers.Default) { gunzip(bytes) }
+    }
+
+    override fun read(chunkSize: Int): Flow<ByteBuffer> = stored.read(chunkSize).gunzip(chunkSize)
+
+    override fun readEncoded(chunkSize: Int): Flow<ByteBuffer> = stored.read(chunkSize)
+
+    override fun close() {
+        stored.close()
+    }
+}
+
+private class CompressingWriter(private val writer: FileWriter) : FileWriter {
+    override suspend fun write(bytes: ByteArray) {
+        val compressed = withContext(Dispatchers.Default) { gzip(bytes) }
+        writer.write(compressed)
+    }
+
+    override suspend fun write(data: Flow<ByteBuffer>) {
+        writer.write(data.gzip(DEFAULT_CHUNK_SIZE))
+    }
+
+    override fun close() {
+        writer.close()
+    }
+}
+
+private class PlainFile(private val stored: FileReader) : EncodedFileReader, FileReader by stored {
+    override val codec: CompressionCodec? get() = null
+
+    override fun readEncoded(chunkSize: Int): Flow<ByteBuffer> = stored.read(chunkSize)
+}
+
+/**
+ * Directory compressing files chosen by [policy] on write and decompressing them on read.
+ * Compressed files are kept in backend under names with codec extension, their size in [FileInfo] is the stored one.
+ */
+internal class CompressingDirectory(
+    private val backend: Directory,
+    private val policy: CompressionPolicy,
+    // path of this directory relative to the compressed root, policy is applied to full paths
+    private val prefix: Path = Path(""),
+) : Directory by backend {
+
+    private fun codec(filename: Path): CompressionCodec? = policy.codec(prefix / filename)
+
+    private fun stored(filename: Path): Path = when (val codec = codec(filename)) {
+        null -> filename
+        else -> filename.resolveSibling("${filename.name}.${codec.extension}")
+    }
+
+    // name of file as seen through this directory, null for backend files which can not be seen
+    private fun visible(storedPath: Path): Path? {
+        val codec = CompressionCodec.values().find { storedPath.name.endsWith(".${it.extension}") }
+        if (codec != null) {
+            val original = storedPath.resolveSibling(storedPath.name.removeSuffix(".${codec.extension}"))
+            if (codec(original) == codec) return original
+        }
+        return storedPath.takeIf { codec(it) == null }
+    }
+
+    override suspend fun get(filename: Path): EncodedFileReader = when (codec(filename)) {
+        null -> PlainFile(backend.get(filename))
+        else -> CompressedFile(backend.get(stored(filename)))
+    }
+
+    override suspend fun put(filename: Path): FileWriter = when (codec(filename)) {
+        null -> backend.put(filename)
+        else -> CompressingWriter(backend.put(stored(filename)))
+    }
+
+    override suspend fun getAll(filenames: Collection<Path>, concurrency: Int): Map<Path, ByteArray> =
+        readInParallel(filenames, concurrency)
+
+    override suspend fun putAll(files: Map<Path, ByteArray>, concurrency: Int): Unit =
+        writeInParallel(files, concurrency)
+
+    override suspend fun delete(filename: Path): Boolean = backend.delete(stored(filename))
+
+    override suspend fun stat(filename: Path): FileInfo? = backend.stat(stored(filename))?.copy(path = filename)
+
+    override fun list(prefix: Path): Flow<FileInfo> = backend.list(prefix).mapNotNull { info ->
+        visible(info.path)?.let { info.copy(path = it) }
+    }
+
+    override fun watch(): Flow<ChangeEvent> = backend.watch().mapNotNull { event ->
+        visible(event.path)?.let { event.copy(path = it) }
+    }
+
+    @Deprecated("Use put")
+    override suspend fun create(filename: String, ignoreIfExists: Boolean) {
+        if (codec(Path(filename)) == null) {
+            @Suppress("DEPRECATION")
+            backend.create(filename, ignoreIfExists)
+        } else if (stat(Path(filename)) == null) {
+            put(Path(filename)).use { it.write(ByteArray(0)) }
+        } else if (!ignoreIfExists) {
+            throw FileAlreadyExistsException(filename)
+        }
+    }
+
+    override suspend fun getSubdir(path: Path): Directory =
+        CompressingDirectory(backend.getSubdir(path), policy, prefix / path)
+
+    @Deprecated("Directories are created on put")
+    override suspend fun createSubdir(dirname: String, ignoreIfExists: Boolean): Directory {
+        @Suppress("DEPRECATION")
+        val subdir = backend.createSubdir(dirname, ignoreIfExists)
+        return CompressingDirectory(subdir, policy, prefix / dirname)
+    }
+}
+
+/**
+ * Compress files chosen by [policy] transparently. Readers returned by the directory are [EncodedFileReader],
+ * so compressed content can be sent to HTTP clients accepting its encoding without decompression.
+ */
+public fun Directory.compressed(policy: CompressionPolicy = CompressionPolicy.byExtension()): Directory =
+    CompressingDirectory(this, policy)
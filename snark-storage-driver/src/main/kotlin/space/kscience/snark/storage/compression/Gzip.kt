@@ -0,0 +1,101 @@
+package space.kscience.snark.storage.compression
+
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.flow
+import space.kscience.snark.storage.write
+import java.io.ByteArrayOutputStream
+import java.io.EOFException
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.zip.CRC32
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+import java.util.zip.Inflater
+
+// header written by GZIPOutputStream: magic, deflate method, no flags, no time, no extra flags, unknown OS
+private const val GZIP_HEADER_SIZE = 10
+private const val GZIP_TRAILER_SIZE = 8
+
+internal fun gzip(bytes: ByteArray): ByteArray {
+    val output = ByteArrayOutputStream(bytes.size / 4 + GZIP_HEADER_SIZE + GZIP_TRAILER_SIZE)
+    GZIPOutputStream(output).use { it.write(bytes) }
+    return output.toByteArray()
+}
+
+internal fun gunzip(bytes: ByteArray): ByteArray = GZIPInputStream(bytes.inputStream()).use { it.readBytes() }
+
+// compressed chunks are emitted as soon as they reach chunkSize bytes
+internal fun Flow<ByteBuffer>.gzip(chunkSize: Int): Flow<ByteBuffer> = flow {
+    val output = ByteArrayOutputStream(chunkSize)
+    val gzip = GZIPOutputStream(output, chunkSize)
+    // closing releases native memory of the deflater, output stream itself holds nothing
+    try {
+        collect { chunk ->
+            gzip.write(chunk)
+            if (output.size() >= chunkSize) {
+                emit(ByteBuffer.wrap(output.toByteArray()))
+                output.reset()
+            }
+        }
+        gzip.finish()
+        if (output.size() > 0) emit(ByteBuffer.wrap(output.toByteArray()))
+    } finally {
+        gzip.close()
+    }
+}
+
+private fun GZIPOutputStream.write(buffer: ByteBuffer) {
+    val bytes = ByteArray(buffer.remaining())
+    buffer.duplicate().get(bytes)
+    write(bytes)
+}
+
+/**
+ * Streaming decompression of a single gzip member written by [GZIPOutputStream], at most chunkSize bytes are inflated at once
+ */
+internal fun Flow<ByteBuffer>.gunzip(chunkSize: Int): Flow<ByteBuffer> = flow {
+    val inflater = Inflater(true)
+    val header = ByteArrayOutputStream(GZIP_HEADER_SIZE)
+    val trailer = ByteArrayOutputStream(GZIP_TRAILER_SIZE)
+    val crc = CRC32()
+    var size = 0L
+    val output = ByteArray(chunkSize)
+    try {
+        collect { chunk ->
+            val input = chunk.duplicate()
+            while (header.size() < GZIP_HEADER_SIZE && input.hasRemaining()) {
+                header.write(input.get().toInt())
+                if (header.size() == GZIP_HEADER_SIZE) checkHeader(header.toByteArray())
+            }
+            if (!inflater.finished() && input.hasRemaining()) {
+                // input position is advanced as the data is consumed
+                inflater.setInput(input)
+                while (!inflater.finished() && !inflater.needsInput()) {
+                    val count = inflater.inflate(output)
+                    if (count > 0) {
+                        crc.update(output, 0, count)
+                        size += count
+                        emit(ByteBuffer.wrap(output.copyOf(count)))
+                    }
+                }
+            }
+            if (inflater.finished()) trailer.write(input)
+        }
+    } finally {
+        inflater.end()
+    }
+    if (!inflater.finished() || trailer.size() < GZIP_TRAILER_SIZE) throw EOFException("Unexpected end of gzip data")
+    val values = ByteBuffer.wrap(trailer.toByteArray()).order(ByteOrder.LITTLE_ENDIAN)
+    if (values.getInt(0).toUInt().toLong() != crc.value || values.getInt(4).toUInt() != size.toUInt()) {
+        throw IOException("Corrupt gzip data")
+    }
+}
+
+private fun checkHeader(header: ByteArray) {
+    if (header[0] != 0x1f.toByte() || header[1] != 0x8b.toByte() || header[2] != 8.toByte()) {
+        throw IOException("Not in gzip format")
+    }
+    // optional header fields are never written by GZIPOutputStream
+    if (header[3] != 0.toByte()) throw IOException("Unsupported gzip header flags")
+}
@@ -0,0 +1,133 @@
+package space.kscience.snark.storage.dedup
+
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.withContext
+import space.kscience.snark.storage.*
+import space.kscience.snark.storage.local.LocalFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.FileAlreadyExistsException
+import java.nio.file.NoSuchFileException
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.time.Instant
+import kotlin.io.path.Path
+import kotlin.io.path.createTempFile
+import kotlin.io.path.deleteIfExists
+import kotlin.io.path.div
+
+/**
+ * Directory storing every distinct content once. Files are blobs named by SHA-256 of their content,
+ * writing a file with unchanged content does not touch the backend. Hash is reported as [FileInfo.eTag].
+ */
+internal class ContentAddressedDirectory(
+    private val store: ContentStore,
+    // path of this directory relative to the root of the store
+    private val prefix: Path = Path(""),
+    private val onClose: () -> Unit = {},
+) : Directory {
+
+    private fun key(filename: Path): Path = (prefix / filename).normalize()
+
+    private inner class ContentWriter(private val key: Path) : FileWriter {
+
+        private suspend fun commit(hash: String, size: Long, upload: suspend (FileWriter) -> Unit) {
+            if (store.entry(key)?.hash == hash) return
+            store.reserve(hash) { store.backend.put(store.blobPath(hash)).use { upload(it) } }
+            store.bind(key, ContentStore.Entry(hash, size, Instant.ofEpochMilli(System.currentTimeMillis())))
+        }
+
+        override suspend fun write(bytes: ByteArray) {
+            val hash = sha256().apply { update(bytes) }.hex()
+            commit(hash, bytes.size.toLong()) { it.write(bytes) }
+        }
+
+        // content is spooled to a local file to get the hash before uploading
+        override suspend fun write(data: Flow<ByteBuffer>) {
+            val temp = withContext(Dispatchers.IO) { createTempFile("snark-blob", ".tmp") }
+            try {
+                val digest = sha256()
+                var size = 0L
+                withContext(Dispatchers.IO) {
+                    FileChannel.open(temp, StandardOpenOption.WRITE).use { channel ->
+                        data.collect { buffer ->
+                            digest.update(buffer.duplicate())
+                            size += buffer.remaining()
+                            val chunk = buffer.duplicate()
+                            while (chunk.hasRemaining()) channel.write(chunk)
+                        }
+                    }
+                }
+                LocalFile(temp).use { spooled ->
+                    commit(digest.hex(), size) { it.write(spooled.read()) }
+                }
+            } finally {
+                withContext(Dispatchers.IO) { temp.deleteIfExists() }
+            }
+        }
+
+        override fun close() {}
+    }
+
+    override suspend fun get(filename: Path): FileReader {
+        val entry = store.entry(key(filename)) ?: throw NoSuchFileException(key(filename).toString())
+        return store.backend.get(store.blobPath(entry.hash))
+    }
+
+    @Deprecated("Use put")
+    override suspend fun create(filename: String, ignoreIfExists: Boolean) {
+        if (store.entry(key(Path(filename))) != null) {
+            if (!ignoreIfExists) throw FileAlreadyExistsException(filename)
+            return
+        }
+        put(Path(filename)).write(ByteArray(0))
+    }
+
+    override suspend fun put(filename: Path): FileWriter = ContentWriter(key(filename))
+
+    override suspend fun delete(filename: Path): Boolean = store.bind(key(filename), null)
+
+    override suspend fun getSubdir(path: Path): Directory = ContentAddressedDirectory(store, prefix / path)
+
+    @Deprecated("Directories are created on put")
+    override suspend fun createSubdir(dirname: String, ignoreIfExists: Boolean): Directory =
+        getSubdir(Path(dirname))
+
+    override fun list(prefix: Path): Flow<FileInfo> = flow {
+        val base = key(prefix)
+        val selected = store.entries().filterKeys { base.toString().isEmpty() || it.startsWith(base) }
+        selected.forEach { (path, entry) -> emit(entry.toInfo(this@ContentAddressedDirectory.prefix.relativize(path))) }
+    }
+
+    override suspend fun stat(filename: Path): FileInfo? = store.entry(key(filename))?.toInfo(filename)
+
+    private fun ContentStore.Entry.toInfo(path: Path) = FileInfo(path, size, lastModified, hash)
+
+    @Deprecated("Not a good idea")
+    override val path: Path
+        get() = prefix
+
+    override fun close() {
+        onClose()
+    }
+
+    suspend fun collectGarbage(): Int = store.collectGarbage()
+}
+
+/**
+ * Store files in [backend] by content. Identical files are kept once, blobs no longer referenced are deleted.
+ * Index of file paths is kept in [backend] as well, so the directory must not be shared by several stores.
+ */
+public fun contentAddressedStorage(backend: Directory): Directory =
+    ContentAddressedDirectory(ContentStore(backend), onClose = backend::close)
+
+/**
+ * Delete blobs not referenced by any file of content addressed storage, e.g. left by interrupted writes.
+ * Returns number of deleted blobs.
+ */
+public suspend fun Directory.collectGarbage(): Int {
+    require(this is ContentAddressedDirectory) { "Not a content addressed directory" }
+    return collectGarbage()
+}
@@ -0,0 +1,208 @@
+package space.kscience.snark.storage.dedup
+
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.flow.filter
+import kotlinx.coroutines.flow.toList
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import space.kscience.snark.storage.Directory
+import java.nio.file.Path
+import java.security.MessageDigest
+import java.time.Instant
+import kotlin.io.path.Path
+import kotlin.io.path.div
+import kotlin.io.path.name
+
+internal const val INDEX_FILE = "index"
+internal const val BLOBS_DIR = "blobs"
+internal const val JOURNAL_DIR = "journal"
+
+// journal is not compacted into the index before it has at least this many records
+private const val MIN_COMPACTION_RECORDS = 64
+
+internal fun sha256(): MessageDigest = MessageDigest.getInstance("SHA-256")
+
+internal fun MessageDigest.hex(): String = digest().joinToString("") { "%02x".format(it) }
+
+/**
+ * Blobs named by SHA-256 of their content and index of paths pointing to them, both kept in [backend].
+ * A blob is deleted as soon as no path references it.
+ *
+ * Every change of the index is saved as a separate journal record. Records are compacted into the index file once
+ * there are as many of them as entries in the index, so the bytes written stay proportional to the number of changes.
+ */
+internal class ContentStore(val backend: Directory) {
+
+    internal data class Entry(val hash: String, val size: Long, val lastModified: Instant)
+
+    private val mutex = Mutex()
+    private var entries: MutableMap<Path, Entry>? = null
+    // number of index entries and pending writes referencing each blob
+    private val references = HashMap<String, Int>()
+    // blobs known to be completely written, a referenced blob may still be uploaded
+    private val stored = HashSet<String>()
+    // running uploads, other writers of the same content wait for them
+    private val uploads = HashMap<String, CompletableDeferred<Unit>>()
+
+    private val compactionMutex = Mutex()
+    // number of the last journal record and of the last record included in the index file
+    private var sequence = 0L
+    private var compacted = 0L
+    private var compactedSize = 0
+
+    private fun journalPath(record: Long): Path = Path(JOURNAL_DIR) / "%019d".format(record)
+
+    private suspend fun journal(): List<Pair<Long, Path>> = backend.list(Path(JOURNAL_DIR))
+        .filter { it.path.parent?.name == JOURNAL_DIR }
+        .toList()
+        .mapNotNull { info -> info.path.name.toLongOrNull()?.let { it to info.path } }
+        .sortedBy { it.first }
+
+    // tab separated hash, size, modification time and path, hash of a removed path is "-"
+    private fun StringBuilder.appendRecord(path: Path, entry: Entry?): StringBuilder =
+        append(entry?.hash ?: "-").append('\t').append(entry?.size ?: 0).append('\t')
+            .append(entry?.lastModified?.toEpochMilli() ?: 0).append('\t').append(path).append('\n')
+
+    private fun MutableMap<Path, Entry>.applyRecords(text: String) = text.lineSequence()
+        .filter { it.isNotBlank() && !it.startsWith('#') }
+        .forEach { line ->
+            val (hash, size, millis, path) = line.split('\t', limit = 4)
+            if (hash == "-") remove(Path(path))
+            else this[Path(path)] = Entry(hash, size.toLong(), Instant.ofEpochMilli(millis.toLong()))
+        }
+
+    fun blobPath(hash: String): Path = Path(BLOBS_DIR) / hash.take(2) / hash
+
+    // must be called under mutex
+    private suspend fun loaded(): MutableMap<Path, Entry> = entries ?: HashMap<Path, Entry>().also { index ->
+        if (backend.stat(Path(INDEX_FILE)) != null) {
+            val text = backend.get(Path(INDEX_FILE)).use { it.readAll() }.decodeToString()
+            // index starts with the number of the last record it includes, index without it includes none
+            compacted = text.lineSequence().firstOrNull()?.takeIf { it.startsWith('#') }?.drop(1)?.toLong() ?: 0
+            index.applyRecords(text)
+        }
+        compactedSize = index.size
+        sequence = compacted
+        // records already included in the index are left by an interrupted compaction
+        journal().filter { it.first > compacted }.forEach { (record, path) ->
+            index.applyRecords(backend.get(path).use { it.readAll() }.decodeToString())
+            sequence = record
+        }
+        index.values.forEach {
+            references.merge(it.hash, 1, Int::plus)
+            stored += it.hash
+        }
+        entries = index
+    }
+
+    suspend fun entry(path: Path): Entry? = mutex.withLock { loaded()[path] }
+
+    suspend fun entries(): Map<Path, Entry> = mutex.withLock { HashMap(loaded()) }
+
+    /**
+     * Register a pending reference to blob [hash] and store the blob with [upload] unless it is already stored.
+     * If the same blob is being uploaded by another writer, waits for it and uploads again if that upload fails.
+     * Every successful reservation must be followed by [bind], a failed one is released.
+     */
+    suspend fun reserve(hash: String, upload: suspend () -> Unit) {
+        mutex.withLock {
+            loaded()
+            references.merge(hash, 1, Int::plus)
+        }
+        try {
+            while (true) {
+                val (running, own) = mutex.withLock {
+                    if (hash in stored) return
+                    uploads[hash]?.let { it to false }
+                        ?: (CompletableDeferred<Unit>().also { uploads[hash] = it } to true)
+                }
+                if (!own) {
+                    // outcome is checked again under the lock
+                    running.join()
+                    continue
+                }
+                try {
+                    upload()
+                } catch (ex: Throwable) {
+                    mutex.withLock { uploads.remove(hash) }
+                    running.completeExceptionally(ex)
+                    throw ex
+                }
+                mutex.withLock {
+                    stored += hash
+                    uploads.remove(hash)
+                }
+                running.complete(Unit)
+                return
+            }
+        } catch (ex: Throwable) {
+            release(hash)
+            throw ex
+        }
+    }
+
+    private suspend fun release(hash: String) {
+        mutex.withLock { references.merge(hash, -1, Int::plus) }
+        collect(hash)
+    }
+
+    /**
+     * Point [path] to a reserved blob or remove it from the index if [entry] is null.
+     * Blob, which is not referenced anymore, is deleted after the change is saved.
+     */
+    suspend fun bind(path: Path, entry: Entry?): Boolean {
+        val (previous, record) = mutex.withLock {
+            val index = loaded()
+            val previous = if (entry == null) index.remove(path) else index.put(path, entry)
+            previous?.let { references.merge(it.hash, -1, Int::plus) }
+            if (previous == null && entry == null) return false
+            previous to ++sequence
+        }
+        val text = buildString { appendRecord(path, entry) }
+        backend.put(journalPath(record)).use { it.write(text.encodeToByteArray()) }
+        compact()
+        previous?.let { collect(it.hash) }
+        return previous != null
+    }
+
+    // records written concurrently with compaction are either included in the index or numbered after it
+    private suspend fun compact() = compactionMutex.withLock {
+        val (snapshot, snapshotSequence) = mutex.withLock {
+            if (sequence - compacted < maxOf(MIN_COMPACTION_RECORDS, compactedSize)) return@withLock null
+            loaded().toList() to sequence
+        } ?: return@withLock
+        val text = buildString {
+            append('#').append(snapshotSequence).append('\n')
+            snapshot.forEach { (path, entry) -> appendRecord(path, entry) }
+        }
+        backend.put(Path(INDEX_FILE)).use { it.write(text.encodeToByteArray()) }
+        mutex.withLock {
+            compacted = snapshotSequence
+            compactedSize = snapshot.size
+        }
+        journal().filter { it.first <= snapshotSequence }.forEach { backend.delete(it.second) }
+    }
+
+    // the count is checked again under the lock, so a blob reserved in the meantime survives
+    private suspend fun collect(hash: String) = mutex.withLock {
+        if ((references[hash] ?: 0) <= 0) {
+            references.remove(hash)
+            stored.remove(hash)
+            backend.delete(blobPath(hash))
+        }
+    }
+
+    /**
+     * Delete blobs not referenced by the index, e.g. left by an interrupted write. Returns number of deleted blobs.
+     */
+    suspend fun collectGarbage(): Int {
+        val blobs = backend.list(Path(BLOBS_DIR)).filter { it.path.parent?.parent?.name == BLOBS_DIR }.toList()
+        return blobs.count { info ->
+            mutex.withLock {
+                loaded()
+                val hash = info.path.name
+                (references[hash] ?: 0) <= 0 && backend.delete(info.path).also { stored.remove(hash) }
+            }
+        }
+    }
+}
@@ -1,38 +1,228 @@
 package space.kscience.snark.storage.local
 
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.FlowCollector
+import kotlinx.coroutines.flow.buffer
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.flow.flowOn
+import kotlinx.coroutines.withContext
+import space.kscience.snark.storage.ChangeEvent
 import space.kscience.snark.storage.Directory
+import space.kscience.snark.storage.FileInfo
 import space.kscience.snark.storage.FileReader
 import space.kscience.snark.storage.FileWriter
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.channels.WritableByteChannel
+import java.io.EOFException
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.NoSuchFileException
 import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.nio.file.attribute.BasicFileAttributes
+import java.util.UUID
+import java.util.concurrent.ConcurrentHashMap
 import kotlin.io.path.*
 
-public fun localStorage(rootPath: Path): Directory {
-    return LocalDirectory(rootPath, Path(""))
+public enum class LocalReadMode {
+    // chunks are copied from the file into fresh heap buffers
+    COPY,
+
+    // chunks are read-only views of the file mapped into memory
+    MAPPED,
+}
+
+public enum class LocalWriteMode {
+    // file is truncated and written in place, readers may see partially written content
+    DIRECT,
+
+    // content is written to a temporary file, which then atomically replaces the target
+    ATOMIC,
+
+    // same as ATOMIC, but the file and its directory are forced to the device before returning
+    DURABLE,
+}
+
+public fun localStorage(
+    rootPath: Path,
+    readMode: LocalReadMode = LocalReadMode.COPY,
+    writeMode: LocalWriteMode = LocalWriteMode.DIRECT,
+): Directory {
+    return LocalDirectory(rootPath, Path(""), readMode, writeMode)
+}
+
+// suffix of temporary files of atomic writes, such files are not listed
+internal const val TEMP_SUFFIX = ".snark-tmp"
+
+/**
+ * Directories known to exist, shared by all directories of one storage,
+ * so writing many files into the same directory does not check its existence each time.
+ */
+internal class KnownDirectories {
+    private val known: MutableSet<Path> = ConcurrentHashMap.newKeySet()
+
+    fun ensure(dir: Path) {
+        if (dir !in known) {
+            dir.createDirectories()
+            known.add(dir)
+        }
+    }
+
+    // directory could be removed behind our back, it is then created again on the second attempt
+    fun <T> retrying(dir: Path, block: () -> T): T {
+        ensure(dir)
+        return try {
+            block()
+        } catch (ex: NoSuchFileException) {
+            known.remove(dir)
+            ensure(dir)
+            block()
+        }
+    }
 }
 
-internal class LocalFile(private val path: Path) : FileReader, FileWriter {
+public interface MappedFileReader : FileReader {
+    // read-only view of the whole file mapped into memory, files over 2 GiB can't be mapped at once
+    public suspend fun map(): ByteBuffer
+}
+
+internal class LocalFile(
+    private val path: Path,
+    private val readMode: LocalReadMode = LocalReadMode.COPY,
+    private val writeMode: LocalWriteMode = LocalWriteMode.DIRECT,
+    private val directories: KnownDirectories = KnownDirectories(),
+) : MappedFileReader, FileWriter {
     override fun close() {}
-    override suspend fun readAll(): ByteArray = path.readBytes()
+    override suspend fun readAll(): ByteArray = withContext(Dispatchers.IO) { path.readBytes() }
+
+    override suspend fun map(): ByteBuffer = withContext(Dispatchers.IO) {
+        FileChannel.open(path, StandardOpenOption.READ).use { channel ->
+            channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+        }
+    }
 
-    override suspend fun write(bytes: ByteArray) {
-        path.parent.createDirectories()
+    override suspend fun transferTo(target: WritableByteChannel): Long = withContext(Dispatchers.IO) {
+        FileChannel.open(path, StandardOpenOption.READ).use { channel ->
+            val size = channel.size()
+            var position = 0L
+            while (position < size) {
+                val transferred = channel.transferTo(position, size - position, target)
+                // nothing is transferred past the end of a file truncated meanwhile
+                if (transferred == 0L && position >= channel.size()) {
+                    throw EOFException("$path was truncated at $position of $size bytes")
+                }
+                position += transferred
+            }
+            position
+        }
+    }
+
+    override suspend fun write(bytes: ByteArray) = write { channel ->
+        val buffer = ByteBuffer.wrap(bytes)
+        while (buffer.hasRemaining()) {
+            channel.write(buffer)
+        }
+    }
+
+    private suspend fun write(block: suspend (FileChannel) -> Unit) = withContext(Dispatchers.IO) {
+        val dir = path.parent
+        if (writeMode == LocalWriteMode.DIRECT) {
+            directories.retrying(dir) {
+                FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)
+            }.use { block(it) }
+            return@withContext
+        }
+        val temp = dir / ".${path.name}.${UUID.randomUUID()}$TEMP_SUFFIX"
         try {
-            path.createFile()
-        } catch (ex: Exception) {
-            // Do nothing
+            directories.retrying(dir) {
+                FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)
+            }.use { channel ->
+                block(channel)
+                if (writeMode == LocalWriteMode.DURABLE) channel.force(true)
+            }
+            temp.moveTo(path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING)
+        } catch (ex: Throwable) {
+            temp.deleteIfExists()
+            throw ex
+        }
+        if (writeMode == LocalWriteMode.DURABLE) {
+            // makes the rename itself durable, not every platform allows to open a directory
+            try {
+                FileChannel.open(dir, StandardOpenOption.READ).use { it.force(true) }
+            } catch (ex: IOException) {
+                // Do nothing
+            }
+        }
+    }
+
+    override fun read(chunkSize: Int): Flow<ByteBuffer> = read(0 until Long.MAX_VALUE, chunkSize)
+
+    override fun read(range: LongRange, chunkSize: Int): Flow<ByteBuffer> = when (readMode) {
+        LocalReadMode.COPY -> copyingRead(range, chunkSize)
+        LocalReadMode.MAPPED -> mappedRead(range, chunkSize)
+    }
+
+    private fun mappedRead(range: LongRange, chunkSize: Int): Flow<ByteBuffer> = flow {
+        val mapped = FileChannel.open(path, StandardOpenOption.READ).use { channel ->
+            val end = minOf(channel.size() - 1, range.last) + 1
+            // mapping is limited to 2 GiB, larger ranges are mapped in several windows
+            (range.first until end step Int.MAX_VALUE.toLong()).map { start ->
+                channel.map(FileChannel.MapMode.READ_ONLY, start, minOf(Int.MAX_VALUE.toLong(), end - start))
+            }
+        }
+        for (window in mapped) {
+            while (window.hasRemaining()) {
+                val chunk = window.slice()
+                chunk.limit(minOf(chunkSize, window.remaining()))
+                window.position(window.position() + chunk.limit())
+                emit(chunk.asReadOnlyBuffer())
+            }
+        }
+    }.flowOn(Dispatchers.IO)
+
+    private fun copyingRead(range: LongRange, chunkSize: Int): Flow<ByteBuffer> = flow {
+        FileChannel.open(path, StandardOpenOption.READ).use { channel ->
+            val end = minOf(channel.size() - 1, range.last) + 1
+            var position = range.first
+            while (position < end) {
+                val buffer = ByteBuffer.allocate(minOf(chunkSize.toLong(), end - position).toInt())
+                val size = channel.read(buffer, position)
+                if (size < 0) break
+                position += size
+                buffer.flip()
+                emit(buffer)
+            }
+        }
+    }.flowOn(Dispatchers.IO).buffer(Channel.RENDEZVOUS)
+
+    override suspend fun write(data: Flow<ByteBuffer>) = write { channel ->
+        data.collect { buffer ->
+            val chunk = buffer.duplicate()
+            while (chunk.hasRemaining()) {
+                channel.write(chunk)
+            }
         }
-        path.writeBytes(bytes)
     }
 }
 
-internal class LocalDirectory(private val root: Path, private val currentDir: Path) : Directory {
+internal class LocalDirectory(
+    private val root: Path,
+    private val currentDir: Path,
+    private val readMode: LocalReadMode = LocalReadMode.COPY,
+    private val writeMode: LocalWriteMode = LocalWriteMode.DIRECT,
+    private val directories: KnownDirectories = KnownDirectories(),
+) : Directory {
     @Deprecated("Use Path, not String")
     private fun realpath(child: String): Path = root / currentDir / child
     private fun realpath(child: Path): Path = root / currentDir / child
 
     override fun close() {}
 
-    override suspend fun get(filename: Path): LocalFile = LocalFile(realpath(filename))
+    override suspend fun get(filename: Path): LocalFile = LocalFile(realpath(filename), readMode, writeMode, directories)
 
     @Deprecated("Use put")
     override suspend fun create(filename: String, ignoreIfExists: Boolean) {
@@ -49,7 +239,54 @@ internal class LocalDirectory(private val root: Path, private val currentDir: Pa
 
     override suspend fun put(filename: Path): LocalFile = get(filename)
 
-    override suspend fun getSubdir(path: Path): LocalDirectory = LocalDirectory(root, currentDir / path)
+    override suspend fun delete(filename: Path): Boolean = withContext(Dispatchers.IO) {
+        realpath(filename).deleteIfExists()
+    }
+
+    // parent directories are created once for the whole batch, files are then written on IO threads
+    override suspend fun putAll(files: Map<Path, ByteArray>, concurrency: Int) {
+        withContext(Dispatchers.IO) {
+            files.keys.mapTo(HashSet()) { realpath(it).parent }.forEach { directories.ensure(it) }
+        }
+        super.putAll(files, concurrency)
+    }
+
+    override suspend fun getSubdir(path: Path): LocalDirectory = LocalDirectory(root, currentDir / path, readMode, writeMode, directories)
+
+    private fun fileInfo(attributes: BasicFileAttributes, relative: Path): FileInfo = FileInfo(
+        path = relative,
+        size = attributes.size(),
+        lastModified = attributes.lastModifiedTime().toInstant()
+    )
+
+    private suspend fun FlowCollector<FileInfo>.walk(dir: Path, relative: Path) {
+        Files.newDirectoryStream(dir).use { stream ->
+            for (child in stream) {
+                if (child.name.endsWith(TEMP_SUFFIX)) continue
+                val childRelative = relative / child.name
+                val attributes = child.readAttributes<BasicFileAttributes>()
+                if (attributes.isDirectory) {
+                    walk(child, childRelative)
+                } else {
+                    emit(fileInfo(attributes, childRelative))
+                }
+            }
+        }
+    }
+
+    override fun list(prefix: Path): Flow<FileInfo> = flow {
+        val dir = realpath(prefix)
+        if (dir.isDirectory()) {
+            walk(dir, prefix)
+        }
+    }.flowOn(Dispatchers.IO)
+
+    override suspend fun stat(filename: Path): FileInfo? = withContext(Dispatchers.IO) {
+        val file = realpath(filename)
+        if (file.isRegularFile()) fileInfo(file.readAttributes(), filename) else null
+    }
+
+    override fun watch(): Flow<ChangeEvent> = watchTree(realpath(Path("")))
 
     @Deprecated("Directories are created on put")
     override suspend fun createSubdir(dirname: String, ignoreIfExists: Boolean): LocalDirectory {
@@ -62,7 +299,7 @@ internal class LocalDirectory(private val root: Path, private val currentDir: Pa
                 throw ex
             }
         }
-        return LocalDirectory(root, currentDir / dirname)
+        return LocalDirectory(root, currentDir / dirname, readMode, writeMode, directories)
     }
 
     @Deprecated("Not a good idea")
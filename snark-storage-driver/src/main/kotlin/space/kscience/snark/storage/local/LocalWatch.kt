@@ -0,0 +1,72 @@
+package space.kscience.snark.storage.local
+
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.flow.flowOn
+import kotlinx.coroutines.runInterruptible
+import space.kscience.snark.storage.ChangeEvent
+import space.kscience.snark.storage.ChangeKind
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardWatchEventKinds.*
+import java.nio.file.WatchKey
+import java.nio.file.WatchService
+import kotlin.io.path.createDirectories
+import kotlin.io.path.isDirectory
+import kotlin.io.path.isRegularFile
+import kotlin.io.path.name
+import kotlin.streams.toList
+
+/**
+ * Change events of file tree under [root] from [WatchService]. Every directory of the tree is registered,
+ * directories created later are registered as they appear and their files are reported as created.
+ */
+internal fun watchTree(root: Path): Flow<ChangeEvent> = flow {
+    root.createDirectories()
+    root.fileSystem.newWatchService().use { service ->
+        val watched = HashMap<Path, WatchKey>()
+
+        // register directory with all subdirectories, returns files already present there
+        fun register(dir: Path): List<Path> = Files.walk(dir).use { paths ->
+            paths.toList().filter { path ->
+                if (path.isDirectory()) {
+                    watched.getOrPut(path) { path.register(service, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE) }
+                    false
+                } else {
+                    path.isRegularFile() && !path.name.endsWith(TEMP_SUFFIX)
+                }
+            }
+        }
+
+        suspend fun report(kind: ChangeKind, file: Path) = emit(ChangeEvent(kind, root.relativize(file)))
+
+        register(root)
+        while (true) {
+            val key = runInterruptible { service.take() }
+            val dir = key.watchable() as Path
+            for (event in key.pollEvents()) {
+                // events were lost, every file could have changed
+                if (event.kind() == OVERFLOW) {
+                    register(root).forEach { report(ChangeKind.MODIFIED, it) }
+                    continue
+                }
+                val child = dir.resolve(event.context() as Path)
+                if (child.name.endsWith(TEMP_SUFFIX)) continue
+                when (event.kind()) {
+                    ENTRY_CREATE -> if (child.isDirectory()) {
+                        register(child).forEach { report(ChangeKind.CREATED, it) }
+                    } else {
+                        report(ChangeKind.CREATED, child)
+                    }
+
+                    ENTRY_MODIFY -> if (!child.isDirectory()) report(ChangeKind.MODIFIED, child)
+
+                    // files of removed directory are reported by its own key
+                    ENTRY_DELETE -> if (watched.remove(child) == null) report(ChangeKind.DELETED, child)
+                }
+            }
+            if (!key.reset()) watched.remove(dir)
+        }
+    }
+}.flowOn(Dispatchers.IO)
@@ -0,0 +1,167 @@
+package space.kscience.snark.storage.memory
+
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.FlowCollector
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.withContext
+import space.kscience.snark.storage.*
+import java.nio.ByteBuffer
+import java.nio.channels.WritableByteChannel
+import java.nio.file.FileAlreadyExistsException
+import java.nio.file.NoSuchFileException
+import java.nio.file.Path
+import java.time.Instant
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import kotlin.concurrent.read
+import kotlin.concurrent.write
+import kotlin.io.path.Path
+import kotlin.io.path.div
+
+// default number of independently locked parts of in-memory storage
+public const val DEFAULT_MEMORY_STRIPES: Int = 16
+
+/**
+ * File content is kept in immutable buffers, which are replaced as a whole on write,
+ * so readers never need a lock after the lookup.
+ */
+internal class StoredFile(val body: ByteBuffer, val lastModified: Instant) {
+    fun info(path: Path) = FileInfo(path, body.remaining().toLong(), lastModified)
+}
+
+/**
+ * Files of in-memory storage, split into [stripes] hash maps each guarded by its own lock.
+ * Bodies are allocated outside of Java heap if [offHeap] is set.
+ */
+internal class MemoryStore(stripes: Int, private val offHeap: Boolean) {
+    private class Stripe {
+        val lock = ReentrantReadWriteLock()
+        val files = HashMap<Path, StoredFile>()
+    }
+
+    init {
+        require(stripes > 0) { "Number of stripes must be positive" }
+    }
+
+    private val stripes = Array(stripes) { Stripe() }
+
+    private fun stripe(path: Path): Stripe = stripes[Math.floorMod(path.hashCode(), stripes.size)]
+
+    fun get(path: Path): StoredFile? = stripe(path).run { lock.read { files[path] } }
+
+    fun put(path: Path, bytes: ByteArray) {
+        val body = if (offHeap) ByteBuffer.allocateDirect(bytes.size).put(bytes).flip() else ByteBuffer.wrap(bytes.copyOf())
+        val file = StoredFile(body.asReadOnlyBuffer(), Instant.now())
+        stripe(path).run { lock.write { files[path] = file } }
+    }
+
+    fun putIfAbsent(path: Path): Boolean = stripe(path).run {
+        lock.write { files.putIfAbsent(path, StoredFile(ByteBuffer.allocate(0), Instant.now())) == null }
+    }
+
+    fun remove(path: Path): Boolean = stripe(path).run { lock.write { files.remove(path) != null } }
+
+    // stripes are locked one by one, so the result is not a snapshot of the whole storage
+    fun select(filter: (Path) -> Boolean): List<Pair<Path, StoredFile>> = stripes.flatMap { stripe ->
+        stripe.lock.read { stripe.files.filterKeys(filter).toList() }
+    }
+}
+
+private suspend fun FlowCollector<ByteBuffer>.emitSlices(body: ByteBuffer, chunkSize: Int) {
+    while (body.hasRemaining()) {
+        val chunk = body.slice()
+        chunk.limit(minOf(chunkSize, body.remaining()))
+        body.position(body.position() + chunk.remaining())
+        emit(chunk)
+    }
+}
+
+internal class MemoryFile(private val store: MemoryStore, private val key: Path) : FileReader, FileWriter {
+
+    private fun body(): ByteBuffer = store.get(key)?.body?.duplicate() ?: throw NoSuchFileException(key.toString())
+
+    override suspend fun readAll(): ByteArray {
+        val body = body()
+        return ByteArray(body.remaining()).also { body.get(it) }
+    }
+
+    // chunks are read-only views of the stored body, nothing is copied
+    override fun read(chunkSize: Int): Flow<ByteBuffer> = flow {
+        emitSlices(body(), chunkSize)
+    }
+
+    override fun read(range: LongRange, chunkSize: Int): Flow<ByteBuffer> = flow {
+        val body = body()
+        if (range.first < body.limit()) {
+            body.limit(minOf(range.last + 1, body.limit().toLong()).toInt())
+            body.position(range.first.toInt())
+            emitSlices(body, chunkSize)
+        }
+    }
+
+    override suspend fun transferTo(target: WritableByteChannel): Long = withContext(Dispatchers.IO) {
+        val body = body()
+        val size = body.remaining().toLong()
+        while (body.hasRemaining()) target.write(body)
+        size
+    }
+
+    override suspend fun write(bytes: ByteArray) {
+        store.put(key, bytes)
+    }
+
+    // content becomes visible only when the whole flow is collected
+    override suspend fun write(data: Flow<ByteBuffer>) {
+        store.put(key, data.toByteArray())
+    }
+
+    override fun close() {}
+}
+
+internal class MemoryDirectory(
+    private val store: MemoryStore,
+    // path of this directory relative to the storage root
+    private val prefix: Path = Path(""),
+) : Directory {
+
+    private fun key(filename: Path): Path = (prefix / filename).normalize()
+
+    override suspend fun get(filename: Path): MemoryFile = MemoryFile(store, key(filename))
+
+    @Deprecated("Use put")
+    override suspend fun create(filename: String, ignoreIfExists: Boolean) {
+        if (!store.putIfAbsent(key(Path(filename))) && !ignoreIfExists) throw FileAlreadyExistsException(filename)
+    }
+
+    override suspend fun put(filename: Path): MemoryFile = get(filename)
+
+    override suspend fun delete(filename: Path): Boolean = store.remove(key(filename))
+
+    override suspend fun getSubdir(path: Path): MemoryDirectory = MemoryDirectory(store, prefix / path)
+
+    override fun list(prefix: Path): Flow<FileInfo> = flow {
+        val base = key(prefix)
+        store.select { base.toString().isEmpty() || it.startsWith(base) }.forEach { (path, file) ->
+            emit(file.info(this@MemoryDirectory.prefix.relativize(path)))
+        }
+    }
+
+    override suspend fun stat(filename: Path): FileInfo? = store.get(key(filename))?.info(filename)
+
+    @Deprecated("Directories are created on put")
+    override suspend fun createSubdir(dirname: String, ignoreIfExists: Boolean): MemoryDirectory =
+        getSubdir(Path(dirname))
+
+    @Deprecated("Not a good idea")
+    override val path: Path
+        get() = prefix
+
+    override fun close() {}
+}
+
+/**
+ * Storage keeping all files in memory, split into [stripes] independently locked parts.
+ * File bodies are kept in direct buffers outside of Java heap if [offHeap] is set, they are freed by garbage collector.
+ */
+public fun inMemoryStorage(stripes: Int = DEFAULT_MEMORY_STRIPES, offHeap: Boolean = false): Directory =
+    MemoryDirectory(MemoryStore(stripes, offHeap))
@@ -0,0 +1,131 @@
+package space.kscience.snark.storage.metrics
+
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.flow.onEach
+import space.kscience.snark.storage.*
+import java.nio.ByteBuffer
+import java.nio.channels.WritableByteChannel
+import java.nio.file.Path
+import kotlin.coroutines.cancellation.CancellationException
+import kotlin.time.Duration.Companion.nanoseconds
+
+// cancelled operations are not recorded
+private inline fun <T> MetricsSink.measure(
+    operation: StorageOperation,
+    bytes: (T) -> Long = { 0L },
+    block: () -> T,
+): T {
+    val start = System.nanoTime()
+    val result = try {
+        block()
+    } catch (ex: CancellationException) {
+        throw ex
+    } catch (ex: Throwable) {
+        record(operation, (System.nanoTime() - start).nanoseconds, 0L, ex)
+        throw ex
+    }
+    record(operation, (System.nanoTime() - start).nanoseconds, bytes(result), null)
+    return result
+}
+
+// streams are measured from the start to the end of collection
+private fun <T> MetricsSink.measure(
+    operation: StorageOperation,
+    flow: Flow<T>,
+    size: (T) -> Long = { 0L },
+): Flow<T> = flow {
+    var bytes = 0L
+    measure(operation, { bytes }) {
+        flow.collect {
+            bytes += size(it)
+            emit(it)
+        }
+    }
+}
+
+private class InstrumentedReader(private val reader: FileReader, private val sink: MetricsSink) : FileReader {
+    override suspend fun readAll(): ByteArray = sink.measure(StorageOperation.READ_ALL, { it.size.toLong() }) {
+        reader.readAll()
+    }
+
+    override fun read(chunkSize: Int): Flow<ByteBuffer> =
+        sink.measure(StorageOperation.READ, reader.read(chunkSize)) { it.remaining().toLong() }
+
+    override fun read(range: LongRange, chunkSize: Int): Flow<ByteBuffer> =
+        sink.measure(StorageOperation.READ_RANGE, reader.read(range, chunkSize)) { it.remaining().toLong() }
+
+    override suspend fun transferTo(target: WritableByteChannel): Long =
+        sink.measure(StorageOperation.TRANSFER, { it }) { reader.transferTo(target) }
+
+    override fun close() {
+        reader.close()
+    }
+}
+
+private class InstrumentedWriter(private val writer: FileWriter, private val sink: MetricsSink) : FileWriter {
+    override suspend fun write(bytes: ByteArray) = sink.measure(StorageOperation.WRITE, { bytes.size.toLong() }) {
+        writer.write(bytes)
+    }
+
+    override suspend fun write(data: Flow<ByteBuffer>) {
+        var bytes = 0L
+        sink.measure(StorageOperation.WRITE, { bytes }) {
+            writer.write(data.onEach { bytes += it.remaining() })
+        }
+    }
+
+    override fun close() {
+        writer.close()
+    }
+}
+
+/**
+ * Directory reporting duration, size and failures of every operation to [sink].
+ */
+internal class InstrumentedDirectory(
+    private val backend: Directory,
+    private val sink: MetricsSink,
+) : Directory by backend {
+
+    override suspend fun get(filename: Path): FileReader =
+        InstrumentedReader(sink.measure(StorageOperation.GET) { backend.get(filename) }, sink)
+
+    override suspend fun put(filename: Path): FileWriter =
+        InstrumentedWriter(sink.measure(StorageOperation.PUT) { backend.put(filename) }, sink)
+
+    override suspend fun getAll(filenames: Collection<Path>, concurrency: Int): Map<Path, ByteArray> =
+        sink.measure(StorageOperation.GET_ALL, { files -> files.values.sumOf { it.size.toLong() } }) {
+            backend.getAll(filenames, concurrency)
+        }
+
+    override suspend fun putAll(files: Map<Path, ByteArray>, concurrency: Int): Unit =
+        sink.measure(StorageOperation.PUT_ALL, { files.values.sumOf { it.size.toLong() } }) {
+            backend.putAll(files, concurrency)
+        }
+
+    override suspend fun delete(filename: Path): Boolean = sink.measure(StorageOperation.DELETE) {
+        backend.delete(filename)
+    }
+
+    override suspend fun getSubdir(path: Path): Directory =
+        InstrumentedDirectory(sink.measure(StorageOperation.GET_SUBDIR) { backend.getSubdir(path) }, sink)
+
+    @Deprecated("Directories are created on put")
+    override suspend fun createSubdir(dirname: String, ignoreIfExists: Boolean): Directory {
+        @Suppress("DEPRECATION")
+        val subdir = sink.measure(StorageOperation.GET_SUBDIR) { backend.createSubdir(dirname, ignoreIfExists) }
+        return InstrumentedDirectory(subdir, sink)
+    }
+
+    override fun list(prefix: Path): Flow<FileInfo> = sink.measure(StorageOperation.LIST, backend.list(prefix))
+
+    override suspend fun stat(filename: Path): FileInfo? = sink.measure(StorageOperation.STAT) {
+        backend.stat(filename)
+    }
+}
+
+/**
+ * Report metrics of all operations with this directory, its subdirectories and files to [sink].
+ */
+public fun Directory.instrumented(sink: MetricsSink): Directory = InstrumentedDirectory(this, sink)
@@ -0,0 +1,88 @@
+package space.kscience.snark.storage.metrics
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+import kotlin.math.ceil
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.microseconds
+
+public enum class StorageOperation {
+    GET,
+    PUT,
+    GET_ALL,
+    PUT_ALL,
+    DELETE,
+    GET_SUBDIR,
+    LIST,
+    STAT,
+    READ_ALL,
+    READ,
+    READ_RANGE,
+    TRANSFER,
+    WRITE,
+}
+
+/**
+ * Receiver of storage measurements, e.g. an adapter to an application metrics registry.
+ * Called from storage coroutines, so implementations must be thread-safe and must not block.
+ */
+public fun interface MetricsSink {
+    // bytes transferred by the operation, error is null for successful operations
+    public fun record(operation: StorageOperation, duration: Duration, bytes: Long, error: Throwable?)
+}
+
+// latency buckets are powers of two microseconds, the last one holds everything longer than about a minute
+private const val LATENCY_BUCKETS = 27
+
+/**
+ * Metrics kept in memory, counts and latency histograms of every operation since creation.
+ */
+public class InMemoryMetrics : MetricsSink {
+
+    public class OperationMetrics internal constructor() {
+        private val counter = AtomicLong()
+        private val errorCounter = AtomicLong()
+        private val byteCounter = AtomicLong()
+        private val latencies = AtomicLongArray(LATENCY_BUCKETS + 1)
+
+        public val count: Long get() = counter.get()
+        public val errors: Long get() = errorCounter.get()
+        public val bytes: Long get() = byteCounter.get()
+        public val errorRate: Double get() = if (count == 0L) 0.0 else errors.toDouble() / count
+
+        internal fun record(duration: Duration, bytes: Long, error: Throwable?) {
+            val micros = duration.inWholeMicroseconds
+            val bucket = (64 - java.lang.Long.numberOfLeadingZeros(micros)).coerceAtMost(LATENCY_BUCKETS)
+            latencies.incrementAndGet(bucket)
+            byteCounter.addAndGet(bytes)
+            if (error != null) errorCounter.incrementAndGet()
+            counter.incrementAndGet()
+        }
+
+        /**
+         * Upper bound of the latency [quantile] with the precision of a factor of two.
+         * [Duration.INFINITE] if it exceeds the last bucket, zero if there were no operations.
+         */
+        public fun latency(quantile: Double): Duration {
+            require(quantile in 0.0..1.0) { "Quantile must be in [0, 1]" }
+            val counts = LongArray(latencies.length()) { latencies.get(it) }
+            val target = ceil(quantile * counts.sum()).toLong().coerceAtLeast(1)
+            var accumulated = 0L
+            counts.forEachIndexed { bucket, count ->
+                accumulated += count
+                if (accumulated >= target) {
+                    return if (bucket == LATENCY_BUCKETS) Duration.INFINITE else (1L shl bucket).microseconds
+                }
+            }
+            return Duration.ZERO
+        }
+    }
+
+    private val operations = StorageOperation.values().associateWith { OperationMetrics() }
+
+    public operator fun get(operation: StorageOperation): OperationMetrics = operations.getValue(operation)
+
+    override fun record(operation: StorageOperation, duration: Duration, bytes: Long, error: Throwable?) {
+        get(operation).record(duration, bytes, error)
+    }
+}
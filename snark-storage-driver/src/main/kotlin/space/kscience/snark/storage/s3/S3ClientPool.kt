@@ -0,0 +1,60 @@
+package space.kscience.snark.storage.s3
+
+import aws.sdk.kotlin.services.s3.S3Client
+import space.kscience.snark.storage.S3ConnectionOptions
+import space.kscience.snark.storage.buildS3Client
+import java.util.concurrent.atomic.AtomicBoolean
+
+internal data class S3ClientKey(
+    val region: String,
+    val endpoint: String?,
+    val connection: S3ConnectionOptions,
+)
+
+// client together with http engine it does not own and therefore does not close itself
+internal class S3ClientHandle(val client: S3Client, private val engine: AutoCloseable?) : AutoCloseable {
+    override fun close() {
+        client.close()
+        engine?.close()
+    }
+}
+
+internal class S3ClientLease(val client: S3Client, private val release: () -> Unit) : AutoCloseable {
+    private val released = AtomicBoolean(false)
+
+    // repeated close does not release the client twice
+    override fun close() {
+        if (released.compareAndSet(false, true)) release()
+    }
+}
+
+/**
+ * Clients shared between directories with the same region, endpoint and connection settings.
+ * Client is created on the first lease and closed when the last lease is closed.
+ */
+internal class S3ClientPool(private val factory: (S3ClientKey) -> S3ClientHandle) {
+    private class Entry(val handle: S3ClientHandle) {
+        var leases = 0
+    }
+
+    private val entries = HashMap<S3ClientKey, Entry>()
+
+    val size: Int get() = synchronized(entries) { entries.size }
+
+    fun acquire(key: S3ClientKey): S3ClientLease = synchronized(entries) {
+        val entry = entries.getOrPut(key) { Entry(factory(key)) }
+        entry.leases++
+        S3ClientLease(entry.handle.client) { release(key, entry) }
+    }
+
+    private fun release(key: S3ClientKey, entry: Entry) {
+        val unused = synchronized(entries) {
+            entry.leases--
+            if (entry.leases == 0) entries.remove(key)
+            entry.leases == 0
+        }
+        if (unused) entry.handle.close()
+    }
+}
+
+internal val sharedS3Clients: S3ClientPool = S3ClientPool(::buildS3Client)
@@ -1,19 +1,37 @@
 package space.kscience.snark.storage.s3
 
 import aws.sdk.kotlin.services.s3.S3Client
+import aws.sdk.kotlin.services.s3.deleteObject
+import aws.sdk.kotlin.services.s3.headObject
+import aws.sdk.kotlin.services.s3.listObjectsV2
+import aws.sdk.kotlin.services.s3.model.NotFound
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.flow
 import space.kscience.snark.storage.Directory
+import space.kscience.snark.storage.FileInfo
 import space.kscience.snark.storage.FileReader
 import space.kscience.snark.storage.FileWriter
+import space.kscience.snark.storage.S3DownloadOptions
+import space.kscience.snark.storage.S3UploadOptions
 import java.nio.file.Path
+import java.time.Instant
+import kotlin.io.path.Path
 import kotlin.io.path.div
 
+internal fun aws.smithy.kotlin.runtime.time.Instant.toJavaInstant(): Instant =
+    Instant.ofEpochSecond(epochSeconds, nanosecondsOfSecond.toLong())
+
 internal class S3Directory(
     private val client: S3Client,
     private val bucketName: String,
     private val currentDir: Path,
+    private val upload: S3UploadOptions = S3UploadOptions(),
+    private val download: S3DownloadOptions = S3DownloadOptions(),
+    // only the directory created from config owns the lease, subdirectories share its client
+    private val lease: S3ClientLease? = null,
 ) : Directory {
     override suspend fun get(filename: Path): FileReader =
-        S3FileReader(client, bucketName, currentDir / filename)
+        S3FileReader(client, bucketName, currentDir / filename, download)
 
     @Deprecated("Use put")
     override suspend fun create(filename: String, ignoreIfExists: Boolean) {
@@ -23,17 +41,67 @@ internal class S3Directory(
     }
 
     override suspend fun put(filename: Path): FileWriter =
-        S3FileWriter(client, bucketName, currentDir / filename)
+        S3FileWriter(client, bucketName, currentDir / filename, upload)
+
+    // S3 does not report whether deleted object existed, so it is checked beforehand
+    override suspend fun delete(filename: Path): Boolean {
+        if (stat(filename) == null) return false
+        client.deleteObject {
+            bucket = bucketName
+            key = (currentDir / filename).toString()
+        }
+        return true
+    }
 
     override suspend fun getSubdir(path: Path): S3Directory =
-        S3Directory(client, bucketName, currentDir / path)
+        S3Directory(client, bucketName, currentDir / path, upload, download)
+
+    // listing is paginated by S3, next page is requested only when the previous one is consumed
+    override fun list(prefix: Path): Flow<FileInfo> = flow {
+        val keyPrefix = (currentDir / prefix).toString().let { if (it.isEmpty()) it else "$it/" }
+        var token: String? = null
+        do {
+            val response = client.listObjectsV2 {
+                bucket = bucketName
+                this.prefix = keyPrefix
+                continuationToken = token
+            }
+            response.contents?.forEach { entry ->
+                val key = entry.key ?: return@forEach
+                emit(
+                    FileInfo(
+                        path = currentDir.relativize(Path(key)),
+                        size = entry.size ?: 0L,
+                        lastModified = entry.lastModified?.toJavaInstant(),
+                        eTag = entry.eTag
+                    )
+                )
+            }
+            token = response.nextContinuationToken
+        } while (response.isTruncated == true && token != null)
+    }
+
+    override suspend fun stat(filename: Path): FileInfo? = try {
+        val response = client.headObject {
+            bucket = bucketName
+            key = (currentDir / filename).toString()
+        }
+        FileInfo(
+            path = filename,
+            size = response.contentLength ?: 0L,
+            lastModified = response.lastModified?.toJavaInstant(),
+            eTag = response.eTag
+        )
+    } catch (ex: NotFound) {
+        null
+    }
 
     @Deprecated("Directories are created on put")
     override suspend fun createSubdir(dirname: String, ignoreIfExists: Boolean): S3Directory =
         if (!ignoreIfExists) {
             TODO("could not check if directory exists")
         } else {
-            S3Directory(client, bucketName, currentDir / dirname)
+            S3Directory(client, bucketName, currentDir / dirname, upload, download)
         }
 
     @Deprecated("Not a good idea")
@@ -41,5 +109,6 @@ internal class S3Directory(
         get() = currentDir
 
     override fun close() {
+        lease?.close()
     }
 }
\ No newline at end of file
@@ -1,33 +1,139 @@
 package space.kscience.snark.storage.s3
 
 import aws.sdk.kotlin.services.s3.S3Client
+import aws.sdk.kotlin.services.s3.headObject
 import aws.sdk.kotlin.services.s3.model.GetObjectRequest
+import aws.sdk.kotlin.services.s3.model.HeadObjectResponse
+import aws.sdk.kotlin.services.s3.model.S3Exception
 import aws.sdk.kotlin.services.s3.putObject
 import aws.smithy.kotlin.runtime.content.ByteStream
 import aws.smithy.kotlin.runtime.content.toByteArray
-import space.kscience.snark.storage.FileReader
-import space.kscience.snark.storage.FileWriter
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.NonCancellable
+import kotlinx.coroutines.async
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import kotlinx.coroutines.withContext
+import space.kscience.snark.storage.*
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.nio.ByteBuffer
 import java.nio.file.Path
 
-internal class S3FileReader(private val client: S3Client, private val bucketName: String, private val path: Path) :
-    FileReader {
+// attempts of parallel download of an object, which is overwritten while it is read
+private const val MAX_VERSION_ATTEMPTS = 3
+
+// S3 refuses ranged request bound to a version by If-Match when the object was overwritten
+private val S3Exception.isPreconditionFailed: Boolean
+    get() = sdkErrorMetadata.errorCode == "PreconditionFailed"
+
+internal class S3FileReader(
+    private val client: S3Client,
+    private val bucketName: String,
+    private val path: Path,
+    private val options: S3DownloadOptions = S3DownloadOptions(),
+) : FileReader {
+    private suspend fun getObject(): ByteArray = client.getObject(GetObjectRequest {
+        bucket = bucketName
+        key = path.toString()
+    }) {
+        it.body?.toByteArray() ?: ByteArray(0)
+    }
+
+    // large objects are fetched by several ranged requests at once, if concurrency is enabled
     override suspend fun readAll(): ByteArray {
-        val result = client.getObject(GetObjectRequest {
+        if (options.rangeConcurrency == 1) return getObject()
+        repeat(MAX_VERSION_ATTEMPTS) {
+            try {
+                return readVersion(head())
+            } catch (ex: S3Exception) {
+                if (!ex.isPreconditionFailed) throw ex
+            }
+        }
+        throw IOException("$path was overwritten during each of $MAX_VERSION_ATTEMPTS attempts to read it")
+    }
+
+    // all ranges are requested from the version described by head
+    private suspend fun readVersion(head: HeadObjectResponse): ByteArray {
+        val size = head.contentLength ?: 0L
+        if (size <= options.rangeSize) return getObject()
+        require(size <= Int.MAX_VALUE) { "$path is too large to be read into memory" }
+        val result = ByteArray(size.toInt())
+        val permits = Semaphore(options.rangeConcurrency)
+        coroutineScope {
+            for (first in 0 until size step options.rangeSize.toLong()) {
+                launch {
+                    permits.withPermit {
+                        readRange(first, minOf(first + options.rangeSize, size) - 1, head.eTag)
+                            .copyInto(result, first.toInt())
+                    }
+                }
+            }
+        }
+        return result
+    }
+
+    private suspend fun head(): HeadObjectResponse = client.headObject {
+        bucket = bucketName
+        key = path.toString()
+    }
+
+    // inclusive range of bytes, as in HTTP Range header, of the object version with the given eTag
+    private suspend fun readRange(first: Long, last: Long, eTag: String?): ByteArray {
+        val bytes = client.getObject(GetObjectRequest {
             bucket = bucketName
             key = path.toString()
+            range = "bytes=$first-$last"
+            ifMatch = eTag
         }) {
             it.body?.toByteArray() ?: ByteArray(0)
         }
-        return result
+        if (bytes.size.toLong() != last - first + 1) error("Expected bytes $first-$last of $path, got ${bytes.size}")
+        return bytes
+    }
+
+    override fun read(chunkSize: Int): Flow<ByteBuffer> = read(0 until Long.MAX_VALUE, chunkSize)
+
+    // ranges are requested ahead of consumer, but no more than rangeConcurrency of them are kept
+    override fun read(range: LongRange, chunkSize: Int): Flow<ByteBuffer> = flow {
+        val head = head()
+        val end = minOf((head.contentLength ?: 0L) - 1, range.last) + 1
+        try {
+            coroutineScope {
+                val pending = ArrayDeque<Deferred<ByteArray>>()
+                var next = range.first
+                while (next < end || pending.isNotEmpty()) {
+                    while (next < end && pending.size < options.rangeConcurrency) {
+                        val first = next
+                        val last = minOf(first + options.rangeSize, end) - 1
+                        pending.addLast(async { readRange(first, last, head.eTag) })
+                        next = last + 1
+                    }
+                    emitChunks(pending.removeFirst().await(), chunkSize)
+                }
+            }
+        } catch (ex: S3Exception) {
+            // part of the old version may be already emitted, so the read can not be restarted
+            if (ex.isPreconditionFailed) throw IOException("$path was overwritten while it was read", ex)
+            throw ex
+        }
     }
 
     override fun close() {
     }
 }
 
-internal class S3FileWriter(private val client: S3Client, private val bucketName: String, private val path: Path) :
-    FileWriter {
-    override suspend fun write(bytes: ByteArray) {
+internal class S3FileWriter(
+    private val client: S3Client,
+    private val bucketName: String,
+    private val path: Path,
+    private val options: S3UploadOptions = S3UploadOptions(),
+) : FileWriter {
+    private suspend fun putObject(bytes: ByteArray) {
         client.putObject {
             bucket = bucketName
             key = path.toString()
@@ -35,7 +141,71 @@ internal class S3FileWriter(private val client: S3Client, private val bucketName
         }
     }
 
+    // failed or cancelled upload is aborted, so S3 does not keep its parts
+    private suspend fun multipartUpload(block: suspend (start: suspend () -> S3MultipartUpload) -> Unit) {
+        var upload: S3MultipartUpload? = null
+        try {
+            coroutineScope {
+                block {
+                    upload ?: S3MultipartUpload.start(client, bucketName, path.toString(), this, options.partConcurrency)
+                        .also { upload = it }
+                }
+                upload?.complete()
+            }
+        } catch (ex: Throwable) {
+            upload?.let { started -> withContext(NonCancellable) { started.abort() } }
+            throw ex
+        }
+    }
+
+    // sends complete parts from pending bytes, the incomplete rest is sent only if it is the last part
+    private suspend fun S3MultipartUpload.submitParts(pending: ByteArrayOutputStream, last: Boolean) {
+        if (pending.size() < options.partSize && !last) return
+        val bytes = pending.toByteArray()
+        pending.reset()
+        var start = 0
+        while (bytes.size - start >= options.partSize) {
+            submitPart(bytes.copyOfRange(start, start + options.partSize))
+            start += options.partSize
+        }
+        if (!last) {
+            pending.write(bytes, start, bytes.size - start)
+        } else if (start < bytes.size) {
+            submitPart(bytes.copyOfRange(start, bytes.size))
+        }
+    }
+
+    override suspend fun write(bytes: ByteArray) {
+        if (bytes.size > options.multipartThreshold) {
+            multipartUpload { start ->
+                val upload = start()
+                for (offset in bytes.indices step options.partSize) {
+                    upload.submitPart(bytes.copyOfRange(offset, minOf(offset + options.partSize, bytes.size)))
+                }
+            }
+        } else {
+            putObject(bytes)
+        }
+    }
+
+    // content is buffered only up to the multipart threshold, after that it is sent in parts as it arrives
+    override suspend fun write(data: Flow<ByteBuffer>) {
+        val pending = ByteArrayOutputStream()
+        var single = true
+        multipartUpload { start ->
+            data.collect { buffer ->
+                pending.write(buffer)
+                if (!single || pending.size() > options.multipartThreshold) {
+                    single = false
+                    start().submitParts(pending, last = false)
+                }
+            }
+            if (!single) start().submitParts(pending, last = true)
+        }
+        if (single) putObject(pending.toByteArray())
+    }
+
     override fun close() {
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,98 @@
+package space.kscience.snark.storage.s3
+
+import aws.sdk.kotlin.services.s3.S3Client
+import aws.sdk.kotlin.services.s3.abortMultipartUpload
+import aws.sdk.kotlin.services.s3.completeMultipartUpload
+import aws.sdk.kotlin.services.s3.createMultipartUpload
+import aws.sdk.kotlin.services.s3.model.CompletedMultipartUpload
+import aws.sdk.kotlin.services.s3.model.CompletedPart
+import aws.sdk.kotlin.services.s3.uploadPart
+import aws.smithy.kotlin.runtime.content.ByteStream
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.sync.Semaphore
+
+// S3 requires every part of multipart upload except the last one to be at least 5 MiB
+internal const val S3_MIN_PART_SIZE: Int = 5 * 1024 * 1024
+
+/**
+ * Multipart upload, which sends parts in [scope] with at most [concurrency] of them in flight.
+ * Parts must be submitted from a single coroutine.
+ */
+internal class S3MultipartUpload private constructor(
+    private val client: S3Client,
+    private val bucketName: String,
+    private val objectKey: String,
+    private val id: String,
+    private val scope: CoroutineScope,
+    concurrency: Int,
+) {
+    private val permits = Semaphore(concurrency)
+    private val parts = mutableListOf<Deferred<CompletedPart>>()
+
+    // suspends while all slots are busy, so no more than concurrency parts are kept in memory
+    suspend fun submitPart(bytes: ByteArray) {
+        val number = parts.size + 1
+        permits.acquire()
+        parts += scope.async {
+            try {
+                uploadPart(number, bytes)
+            } finally {
+                permits.release()
+            }
+        }
+    }
+
+    private suspend fun uploadPart(number: Int, bytes: ByteArray): CompletedPart {
+        val response = client.uploadPart {
+            bucket = bucketName
+            key = objectKey
+            uploadId = id
+            partNumber = number
+            body = ByteStream.fromBytes(bytes)
+        }
+        return CompletedPart {
+            eTag = response.eTag
+            partNumber = number
+        }
+    }
+
+    suspend fun complete() {
+        val completed = parts.awaitAll()
+        client.completeMultipartUpload {
+            bucket = bucketName
+            key = objectKey
+            uploadId = id
+            multipartUpload = CompletedMultipartUpload {
+                parts = completed
+            }
+        }
+    }
+
+    suspend fun abort() {
+        client.abortMultipartUpload {
+            bucket = bucketName
+            key = objectKey
+            uploadId = id
+        }
+    }
+
+    companion object {
+        suspend fun start(
+            client: S3Client,
+            bucketName: String,
+            objectKey: String,
+            scope: CoroutineScope,
+            concurrency: Int,
+        ): S3MultipartUpload {
+            val response = client.createMultipartUpload {
+                bucket = bucketName
+                key = objectKey
+            }
+            val id = response.uploadId ?: error("S3 did not return upload id for $objectKey")
+            return S3MultipartUpload(client, bucketName, objectKey, id, scope, concurrency)
+        }
+    }
+}
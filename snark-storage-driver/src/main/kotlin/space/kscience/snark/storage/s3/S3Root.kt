@@ -3,17 +3,35 @@ package space.kscience.snark.storage.s3
 import aws.sdk.kotlin.services.s3.S3Client
 import aws.sdk.kotlin.services.s3.createBucket
 import aws.sdk.kotlin.services.s3.headBucket
+import kotlinx.coroutines.flow.Flow
 import space.kscience.snark.storage.Directory
+import space.kscience.snark.storage.FileInfo
 import space.kscience.snark.storage.FileReader
 import space.kscience.snark.storage.FileWriter
+import space.kscience.snark.storage.S3DownloadOptions
+import space.kscience.snark.storage.S3UploadOptions
 import java.nio.file.Path
 import kotlin.io.path.Path
 
-public fun s3Storage(client: S3Client): Directory =
-    S3Root(client)
+public fun s3Storage(
+    client: S3Client,
+    upload: S3UploadOptions = S3UploadOptions(),
+    download: S3DownloadOptions = S3DownloadOptions(),
+): Directory = S3Root(client, upload, download)
 
-public fun s3Bucket(client: S3Client, bucket: String): Directory =
-    S3Directory(client, bucket, Path(""))
+public fun s3Bucket(
+    client: S3Client,
+    bucket: String,
+    upload: S3UploadOptions = S3UploadOptions(),
+    download: S3DownloadOptions = S3DownloadOptions(),
+): Directory = S3Directory(client, bucket, Path(""), upload, download)
+
+// directory owns the lease and releases the client on close
+internal fun s3Storage(lease: S3ClientLease, upload: S3UploadOptions, download: S3DownloadOptions): Directory =
+    S3Root(lease.client, upload, download, lease)
+
+internal fun s3Bucket(lease: S3ClientLease, bucket: String, upload: S3UploadOptions, download: S3DownloadOptions): Directory =
+    S3Directory(lease.client, bucket, Path(""), upload, download, lease)
 
 internal fun splitPathIntoBucketAndPath(path: Path): Pair<String, Path> {
     val bucket = path.getName(0)
@@ -21,7 +39,12 @@ internal fun splitPathIntoBucketAndPath(path: Path): Pair<String, Path> {
     return Pair(bucket.toString(), filePath)
 }
 
-internal class S3Root(private val client: S3Client) : Directory {
+internal class S3Root(
+    private val client: S3Client,
+    private val upload: S3UploadOptions = S3UploadOptions(),
+    private val download: S3DownloadOptions = S3DownloadOptions(),
+    private val lease: S3ClientLease? = null,
+) : Directory {
 
     override suspend fun get(filename: Path): FileReader {
         throw NoSuchFileException(filename.toFile())
@@ -36,12 +59,24 @@ internal class S3Root(private val client: S3Client) : Directory {
         throw NoSuchFileException(filename.toFile())
     }
 
+    override suspend fun delete(filename: Path): Boolean {
+        throw NoSuchFileException(filename.toFile())
+    }
+
+    override fun list(prefix: Path): Flow<FileInfo> {
+        throw NoSuchFileException(prefix.toFile())
+    }
+
+    override suspend fun stat(filename: Path): FileInfo? {
+        throw NoSuchFileException(filename.toFile())
+    }
+
     override suspend fun getSubdir(path: Path): Directory = try {
         val (bucketName, filePath) = splitPathIntoBucketAndPath(path)
         client.headBucket {
             bucket = bucketName
         }
-        S3Directory(client, bucketName, filePath)
+        S3Directory(client, bucketName, filePath, upload, download)
     } catch (ex: Exception) {
         throw AccessDeniedException(path.toFile(), reason = ex.message)
     }
@@ -52,7 +87,7 @@ internal class S3Root(private val client: S3Client) : Directory {
         client.createBucket {
             bucket = bucketName
         }
-        S3Directory(client, bucketName, filePath)
+        S3Directory(client, bucketName, filePath, upload, download)
     } catch (ex: Exception) {
         throw AccessDeniedException(Path(dirname).toFile(), reason = ex.message)
     }
@@ -62,6 +97,7 @@ internal class S3Root(private val client: S3Client) : Directory {
         get() = Path("")
 
     override fun close() {
+        lease?.close()
     }
 
 }
\ No newline at end of file
@@ -1,28 +1,61 @@
 package space.kscience.snark.storage.unzip
 
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.flow.flowOn
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.withContext
 import space.kscience.snark.storage.*
-import java.io.FileInputStream
-import java.util.zip.ZipInputStream
+import java.nio.ByteBuffer
+import java.util.zip.ZipEntry
+import java.util.zip.ZipFile
+import kotlin.io.path.Path
 
-public suspend fun unzip(source_path: String, target: Directory) {
-    val zis = ZipInputStream(FileInputStream(source_path))
-    var zipEntry = zis.nextEntry
-    while (zipEntry != null) {
-        if (!zipEntry.isDirectory) {
-            val filename = zipEntry.name
-            target.create(filename, true)
-            val fos = target.put(filename)
-            var sz = zipEntry.size.toInt()
-            if (sz == -1) {
-                sz = 1024
+// number of entries uploaded to target directory at the same time
+public const val DEFAULT_UNZIP_PARALLELISM: Int = 8
+
+private fun ZipFile.read(entry: ZipEntry, chunkSize: Int): Flow<ByteBuffer> = flow {
+    getInputStream(entry).use { input ->
+        while (true) {
+            val buffer = ByteArray(chunkSize)
+            val size = input.readNBytes(buffer, 0, chunkSize)
+            if (size <= 0) break
+            emit(ByteBuffer.wrap(buffer, 0, size))
+        }
+    }
+}.flowOn(Dispatchers.IO)
+
+public suspend fun unzip(
+    source_path: String,
+    target: Directory,
+    parallelism: Int = DEFAULT_UNZIP_PARALLELISM,
+    chunkSize: Int = DEFAULT_CHUNK_SIZE,
+) {
+    val zip = withContext(Dispatchers.IO) { ZipFile(source_path) }
+    zip.use {
+        val permits = Semaphore(parallelism)
+        coroutineScope {
+            for (zipEntry in zip.entries()) {
+                if (zipEntry.isDirectory) continue
+                val filename = Path(zipEntry.name)
+                if (filename.isAbsolute || filename.normalize().startsWith("..")) {
+                    throw IllegalArgumentException("Zip entry ${zipEntry.name} points outside of target directory")
+                }
+                // entries are taken from the archive only as fast as they are uploaded
+                permits.acquire()
+                launch {
+                    try {
+                        target.put(filename).use { writer ->
+                            writer.write(zip.read(zipEntry, chunkSize))
+                        }
+                    } finally {
+                        permits.release()
+                    }
+                }
             }
-            val buffer = ByteArray(sz)
-            zis.read(buffer)
-            fos.write(buffer)
-            fos.close()
         }
-        zipEntry = zis.nextEntry
     }
-    zis.closeEntry()
-    zis.close()
-}
\ No newline at end of file
+}
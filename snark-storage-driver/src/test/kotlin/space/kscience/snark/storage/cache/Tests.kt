@@ -0,0 +1,124 @@
+package space.kscience.snark.storage.cache
+
+import kotlinx.coroutines.flow.asFlow
+import kotlinx.coroutines.flow.toList
+import kotlinx.coroutines.runBlocking
+import space.kscience.snark.storage.*
+import space.kscience.snark.storage.local.localStorage
+import java.nio.file.Path
+import kotlin.io.path.*
+import kotlin.test.*
+
+internal class CachingDirectoryTests {
+
+    private var tempDir: Path? = null
+    private var cache: ContentCache? = null
+    private var cached: Directory? = null
+
+    @BeforeTest
+    fun setUp() {
+        tempDir = createTempDirectory()
+        cache = ContentCache(memoryLimit = 250, diskPath = tempDir!! / "spill", diskLimit = 1000)
+        cached = CachingDirectory(localStorage(tempDir!! / "data"), cache!!)
+    }
+
+    private fun content(size: Int, seed: Int) = ByteArray(size) { (it * seed).toByte() }
+
+    private fun spillDirectories() = (tempDir!! / "spill").listDirectoryEntries().filter { it.isDirectory() }
+
+    @Test
+    fun testReadThrough() = runBlocking {
+        val bytes = content(100, 3)
+        cached!!.put("tmp").write(bytes)
+
+        assertContentEquals(bytes, cached!!.get("tmp").readAll())
+        assertEquals(0, cache!!.hits.get())
+        assertContentEquals(bytes, cached!!.get("tmp").readAll())
+        assertContentEquals(bytes, cached!!.get("tmp").read(30).toList().asFlow().toByteArray())
+        assertEquals(2, cache!!.hits.get())
+    }
+
+    @Test
+    fun testInvalidation() = runBlocking {
+        cached!!.put("tmp").write(content(100, 3))
+        cached!!.get("tmp").readAll()
+
+        val updated = content(50, 5)
+        cached!!.put("tmp").write(updated)
+        assertContentEquals(updated, cached!!.get("tmp").readAll())
+
+        // change behind the cache is detected by metadata
+        val external = content(70, 7)
+        (tempDir!! / "data" / "tmp").writeBytes(external)
+        assertContentEquals(external, cached!!.get("tmp").readAll())
+        assertEquals(0, cache!!.hits.get())
+    }
+
+    @Test
+    fun testBatchGoesThroughCache() = runBlocking {
+        val files = (1..2).associate { Path("tmp$it") to content(10, it) }
+        cached!!.putAll(files)
+        cached!!.getAll(files.keys)
+        cached!!.getAll(files.keys)
+        assertEquals(2, cache!!.hits.get())
+
+        cached!!.putAll(mapOf(Path("tmp1") to content(20, 3)))
+        assertContentEquals(content(20, 3), cached!!.getAll(listOf(Path("tmp1"))).getValue(Path("tmp1")))
+    }
+
+    @Test
+    fun testSubdirectoriesShareCache() = runBlocking {
+        val bytes = content(100, 3)
+        (cached!! / "dir").put("tmp").write(bytes)
+        cached!!.get(Path("dir") / "tmp").readAll()
+        assertContentEquals(bytes, (cached!! / "dir").get("tmp").readAll())
+        assertEquals(1, cache!!.hits.get())
+
+        (cached!! / "dir").put("tmp").write(content(10, 1))
+        assertEquals(10, cached!!.get(Path("dir") / "tmp").readAll().size)
+    }
+
+    @Test
+    fun testEvictionAndSpill() = runBlocking {
+        for (index in 1..3) {
+            cached!!.put("tmp$index").write(content(100, index))
+            cached!!.get("tmp$index").readAll()
+        }
+        // the least recently used entry does not fit into memory and is spilled to disk
+        assertEquals(1, spillDirectories().single().listDirectoryEntries().size)
+
+        // another cache sharing the path keeps spilled entries of this one
+        ContentCache(memoryLimit = 250, diskPath = tempDir!! / "spill", diskLimit = 1000)
+        assertContentEquals(content(100, 1), cached!!.get("tmp1").readAll())
+        assertEquals(1, cache!!.hits.get())
+
+        // entries bigger than both tiers are not cached
+        cached!!.put("big").write(content(2000, 1))
+        cached!!.get("big").readAll()
+        cached!!.get("big").readAll()
+        assertEquals(1, cache!!.hits.get())
+    }
+
+    @Test
+    fun testSpillDirectoryCleanup() {
+        val spill = tempDir!! / "spill"
+        // left by caches which were not closed
+        (spill / "cache-crashed").createDirectories()
+        (spill / "cache-crashed.lock").createFile()
+        (spill / "cache-orphan").createDirectories()
+
+        val other = ContentCache(memoryLimit = 250, diskPath = spill, diskLimit = 1000)
+        assertEquals(2, spillDirectories().size)
+        assertFalse((spill / "cache-crashed.lock").exists())
+
+        other.close()
+        cache!!.close()
+        localStorage(tempDir!! / "data").cached(diskPath = spill).close()
+        assertEquals(emptyList(), spill.listDirectoryEntries())
+    }
+
+    @AfterTest
+    fun tearDown() {
+        tempDir!!.toFile().deleteRecursively()
+    }
+}
@@ -0,0 +1,84 @@
+package space.kscience.snark.storage.compression
+
+import kotlinx.coroutines.flow.asFlow
+import kotlinx.coroutines.flow.map
+import kotlinx.coroutines.flow.toList
+import kotlinx.coroutines.runBlocking
+import space.kscience.snark.storage.*
+import space.kscience.snark.storage.memory.inMemoryStorage
+import java.nio.ByteBuffer
+import kotlin.io.path.Path
+import kotlin.io.path.div
+import kotlin.test.*
+
+internal class CompressingDirectoryTests {
+
+    private var backend: Directory? = null
+    private var storage: Directory? = null
+
+    @BeforeTest
+    fun setUp() {
+        backend = inMemoryStorage()
+        storage = backend!!.compressed()
+    }
+
+    private val text = "# Title\n\nSome text of the document, which repeats. ".repeat(2000).encodeToByteArray()
+
+    @Test
+    fun testRoundTrip() = runBlocking {
+        (storage!! / "dir").put("main.md").write(text)
+        storage!!.put("image.png").write(text)
+
+        assertNull(backend!!.stat("dir/main.md"))
+        assertTrue(backend!!.stat("dir/main.md.gz")!!.size < text.size / 10)
+        assertEquals(text.size.toLong(), backend!!.stat("image.png")!!.size)
+
+        assertContentEquals(text, storage!!.get(Path("dir") / "main.md").readAll())
+        assertContentEquals(text, storage!!.get("dir/main.md").read(1000).toList().asFlow().toByteArray())
+        assertContentEquals(text.copyOfRange(5000, 7000), storage!!.get("dir/main.md").readRange(5000L..6999L))
+        assertContentEquals(text, storage!!.get("image.png").readAll())
+    }
+
+    @Test
+    fun testStreamingWrite() = runBlocking {
+        val chunks = text.asList().chunked(1000).asFlow().map { ByteBuffer.wrap(it.toByteArray()) }
+        storage!!.put("main.md").write(chunks)
+        assertContentEquals(text, storage!!.get("main.md").readAll())
+        assertContentEquals(text, storage!!.get("main.md").read(100).toByteArray())
+    }
+
+    @Test
+    fun testEncodedRead() = runBlocking {
+        storage!!.put("page.html").write(text)
+        storage!!.put("image.png").write(text)
+
+        val html = storage!!.get("page.html") as EncodedFileReader
+        assertEquals("gzip", html.codec?.contentEncoding)
+        assertContentEquals(backend!!.get("page.html.gz").readAll(), html.readEncoded().toByteArray())
+
+        val image = storage!!.get("image.png") as EncodedFileReader
+        assertNull(image.codec)
+        assertContentEquals(text, image.readEncoded().toByteArray())
+    }
+
+    @Test
+    fun testListStat() = runBlocking {
+        storage!!.putAll(mapOf(Path("a.md") to text, Path("dir/b.json") to text, Path("c.png") to text))
+        assertEquals(
+            setOf(Path("a.md"), Path("dir") / "b.json", Path("c.png")),
+            storage!!.list().toList().map { it.path }.toSet()
+        )
+        assertEquals(Path("a.md"), storage!!.stat("a.md")?.path)
+
+        assertTrue(storage!!.delete("a.md"))
+        assertNull(backend!!.stat("a.md.gz"))
+    }
+
+    @Test
+    fun testCorruptData() = runBlocking<Unit> {
+        storage!!.put("main.md").write(text)
+        val stored = backend!!.get("main.md.gz").readAll()
+        backend!!.put("main.md.gz").write(stored.copyOf(stored.size - 4))
+        assertFails { storage!!.get("main.md").read().toByteArray() }
+    }
+}
@@ -0,0 +1,154 @@
+package space.kscience.snark.storage.dedup
+
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.async
+import kotlinx.coroutines.flow.asFlow
+import kotlinx.coroutines.flow.map
+import kotlinx.coroutines.flow.toList
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.supervisorScope
+import kotlinx.coroutines.yield
+import space.kscience.snark.storage.*
+import space.kscience.snark.storage.s3.InMemoryS3
+import space.kscience.snark.storage.s3.s3Bucket
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.time.Instant
+import kotlin.io.path.Path
+import kotlin.test.*
+
+internal class ContentAddressedDirectoryTests {
+
+    private var s3: InMemoryS3? = null
+    private var backend: Directory? = null
+    private var storage: Directory? = null
+
+    @BeforeTest
+    fun setUp() {
+        s3 = InMemoryS3()
+        backend = s3Bucket(s3!!.client, "snark-test")
+        storage = contentAddressedStorage(backend!!)
+    }
+
+    private fun calls(operation: String): Int = s3!!.calls[operation]?.get() ?: 0
+
+    private suspend fun blobs(): List<FileInfo> = backend!!.list(BLOBS_DIR).toList()
+
+    private fun content(size: Int, seed: Int) = ByteArray(size) { (it * seed).toByte() }
+
+    @Test
+    fun testDeduplication() = runBlocking {
+        val bytes = content(100, 3)
+        storage!!.put("a").write(bytes)
+        (storage!! / "dir").put("b").write(bytes)
+
+        assertEquals(1, blobs().size)
+        assertContentEquals(bytes, storage!!.get("dir/b").readAll())
+        assertEquals(storage!!.stat("a")!!.eTag, storage!!.stat("dir/b")!!.eTag)
+        assertEquals(setOf(Path("a"), Path("dir/b")), storage!!.list().toList().map { it.path }.toSet())
+        assertEquals(setOf(Path("b")), (storage!! / "dir").list().toList().map { it.path }.toSet())
+    }
+
+    @Test
+    fun testUnchangedWriteSkipsBackend() = runBlocking {
+        val bytes = content(100, 3)
+        storage!!.put("a").write(bytes)
+        val puts = calls("putObject")
+
+        storage!!.put("a").write(bytes)
+        storage!!.put("a").write(bytes.asList().chunked(30).asFlow().map { ByteBuffer.wrap(it.toByteArray()) })
+        assertEquals(puts, calls("putObject"))
+    }
+
+    @Test
+    fun testGarbageCollection() = runBlocking {
+        storage!!.put("a").write(content(100, 3))
+        storage!!.put("b").write(content(100, 3))
+        storage!!.put("a").write(content(100, 5))
+        assertEquals(2, blobs().size)
+
+        storage!!.put("b").write(content(100, 5))
+        assertEquals(1, blobs().size)
+
+        assertTrue(storage!!.delete("a"))
+        assertTrue(storage!!.delete("b"))
+        assertFalse(storage!!.delete("b"))
+        assertEquals(0, blobs().size)
+        assertNull(storage!!.stat("a"))
+
+        // blob left by an interrupted write
+        backend!!.put("$BLOBS_DIR/ab/abcd").write(content(10, 1))
+        assertEquals(1, storage!!.collectGarbage())
+        assertEquals(0, blobs().size)
+    }
+
+    @Test
+    fun testIndexPersistence() = runBlocking {
+        val bytes = content(100, 3)
+        storage!!.put("dir/a").write(bytes)
+        storage!!.put("b").write(bytes)
+        storage!!.delete("b")
+
+        val reopened = contentAddressedStorage(backend!!)
+        assertContentEquals(bytes, reopened.get("dir/a").readAll())
+        assertNull(reopened.stat("b"))
+        assertEquals(storage!!.stat("dir/a"), reopened.stat("dir/a"))
+    }
+
+    @Test
+    fun testWriterWaitsForRunningUpload() = runBlocking<Unit> {
+        val store = ContentStore(backend!!)
+        val bytes = content(100, 3)
+        val hash = sha256().apply { update(bytes) }.hex()
+        val started = CompletableDeferred<Unit>()
+        val fail = CompletableDeferred<Unit>()
+        var uploads = 0
+
+        supervisorScope {
+            val first = async {
+                store.reserve(hash) {
+                    started.complete(Unit)
+                    fail.await()
+                    throw IOException("Upload failed")
+                }
+            }
+            started.await()
+            val second = async {
+                store.reserve(hash) {
+                    uploads++
+                    backend!!.put(store.blobPath(hash)).write(bytes)
+                }
+            }
+            yield()
+            // blob is not stored yet, so the second writer must not bind to it
+            assertFalse(second.isCompleted)
+
+            fail.complete(Unit)
+            assertFailsWith<IOException> { first.await() }
+            second.await()
+        }
+        assertEquals(1, uploads)
+        store.bind(Path("a"), ContentStore.Entry(hash, bytes.size.toLong(), Instant.EPOCH))
+
+        store.reserve(hash) { uploads++ }
+        assertEquals(1, uploads)
+        store.bind(Path("b"), ContentStore.Entry(hash, bytes.size.toLong(), Instant.EPOCH))
+        assertContentEquals(bytes, backend!!.get(store.blobPath(hash)).readAll())
+    }
+
+    @Test
+    fun testJournalCompaction() = runBlocking<Unit> {
+        val count = 200
+        repeat(count) { storage!!.put("file$it").write(content(10, it + 1)) }
+
+        // every write puts a blob and a journal record, index is rewritten only when the journal doubles it
+        assertTrue(calls("putObject") <= 2 * count + 3)
+        assertTrue(backend!!.list(JOURNAL_DIR).toList().size < count)
+
+        storage!!.delete("file0")
+        val reopened = contentAddressedStorage(backend!!)
+        assertEquals(count - 1, reopened.list().toList().size)
+        assertNull(reopened.stat("file0"))
+        assertContentEquals(content(10, count), reopened.get("file${count - 1}").readAll())
+    }
+}
@@ -1,9 +1,22 @@
 package space.kscience.snark.storage.local
 
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.flow.asFlow
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.flow.map
+import kotlinx.coroutines.flow.toList
+import kotlinx.coroutines.launch
 import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import kotlinx.coroutines.withTimeoutOrNull
 
 import space.kscience.snark.storage.*
+import java.io.ByteArrayOutputStream
+import java.io.EOFException
 import java.io.File
+import java.nio.ByteBuffer
+import java.nio.channels.Channels
+import java.nio.channels.WritableByteChannel
 import java.nio.file.Path
 import kotlin.io.path.*
 import kotlin.test.*
@@ -98,6 +111,169 @@ internal class LocalDriverTests {
         assertContentEquals(bytes, subdir.get("data.txt").readAll())
     }
 
+    @Test
+    fun testStreaming() = runBlocking {
+        val content = ByteArray(10_000) { it.toByte() }
+        val chunks = content.asList().chunked(4096).map { it.toByteArray() }
+        testSample!!.put("tmp").write(chunks.asFlow().map { ByteBuffer.wrap(it) })
+        assertContentEquals(content, testSample!!.get("tmp").readAll())
+
+        val read = testSample!!.get("tmp").read(4096).toList()
+        assertEquals(listOf(4096, 4096, 1808), read.map { it.remaining() })
+        assertContentEquals(content, read.asFlow().toByteArray())
+
+        testSample!!.get("tmp").copyTo(testSample!!.put(Path("tdir") / "copy"), 1000)
+        assertContentEquals(content, (tempDir!! / "tdir" / "copy").readBytes())
+    }
+
+    @Test
+    fun testMappedRead() = runBlocking {
+        val content = ByteArray(10_000) { (it % 7).toByte() }
+        (tempDir!! / "tmp").writeBytes(content)
+        val mapped = localStorage(tempDir!!, LocalReadMode.MAPPED)
+
+        val read = mapped.get("tmp").read(4096).toList()
+        assertEquals(listOf(4096, 4096, 1808), read.map { it.remaining() })
+        assertTrue(read.all { it.isReadOnly })
+        assertContentEquals(content, read.asFlow().toByteArray())
+
+        val file = mapped.get("tmp") as MappedFileReader
+        assertEquals(content.size, file.map().remaining())
+
+        val output = ByteArrayOutputStream()
+        assertEquals(content.size.toLong(), file.transferTo(Channels.newChannel(output)))
+        assertContentEquals(content, output.toByteArray())
+    }
+
+    @Test
+    fun testTransferOfTruncatedFile() = runBlocking<Unit> {
+        val content = ByteArray(100_000) { it.toByte() }
+        val path = tempDir!! / "tmp"
+        path.writeBytes(content)
+        val file = localStorage(tempDir!!).get("tmp") as MappedFileReader
+
+        // file is truncated as soon as the first bytes are sent
+        val output = ByteArrayOutputStream()
+        val target = object : WritableByteChannel by Channels.newChannel(output) {
+            override fun write(src: ByteBuffer): Int {
+                path.writeBytes(ByteArray(10))
+                val written = src.remaining()
+                output.write(ByteArray(written).also { src.get(it) })
+                return written
+            }
+        }
+        assertFailsWith<EOFException> { file.transferTo(target) }
+    }
+
+    @Test
+    fun testListStat() = runBlocking {
+        testSample!!.put("tmp1").write(bytes)
+        testSample!!.put(Path("tdir") / "tmp2").write(bytes + bytes)
+        testSample!!.put(Path("tdir") / "inner" / "tmp3").write(bytes)
+
+        val all = testSample!!.list().toList().associateBy { it.path }
+        assertEquals(
+            setOf(Path("tmp1"), Path("tdir") / "tmp2", Path("tdir") / "inner" / "tmp3"),
+            all.keys
+        )
+        assertEquals(16, all.getValue(Path("tdir") / "tmp2").size)
+
+        val nested = testSample!!.list("tdir").toList().map { it.path }.toSet()
+        assertEquals(setOf(Path("tdir") / "tmp2", Path("tdir") / "inner" / "tmp3"), nested)
+        assertTrue(testSample!!.list("missing").toList().isEmpty())
+
+        val info = testSample!!.stat("tmp1")
+        assertNotNull(info)
+        assertEquals(bytes.size.toLong(), info.size)
+        assertEquals((tempDir!! / "tmp1").getLastModifiedTime().toInstant(), info.lastModified)
+        assertNull(testSample!!.stat("missing"))
+        assertNull(testSample!!.stat("tdir"))
+    }
+
+    @Test
+    fun testRangedRead() = runBlocking {
+        val content = ByteArray(10_000) { (it % 11).toByte() }
+        testSample!!.put("tmp").write(content)
+        val mapped = localStorage(tempDir!!, LocalReadMode.MAPPED)
+
+        for (dir in listOf(testSample!!, mapped)) {
+            val chunks = dir.get("tmp").read(1_000L until 5_500L, 1024).toList()
+            assertEquals(listOf(1024, 1024, 1024, 1024, 404), chunks.map { it.remaining() })
+            assertContentEquals(content.copyOfRange(1_000, 5_500), chunks.asFlow().toByteArray())
+            assertContentEquals(content.copyOfRange(9_990, 10_000), dir.get("tmp").readRange(9_990L..20_000L))
+            assertTrue(dir.get("tmp").readRange(20_000L..30_000L).isEmpty())
+        }
+    }
+
+    @Test
+    fun testAtomicWrite() = runBlocking {
+        for (mode in listOf(LocalWriteMode.ATOMIC, LocalWriteMode.DURABLE)) {
+            val dir = localStorage(tempDir!! / mode.name, writeMode = mode)
+            dir.put(Path("tdir") / "tmp").write(bytes)
+            dir.put(Path("tdir") / "tmp").write(bytes.reversedArray())
+            dir.put(Path("tdir") / "streamed").write(listOf(bytes, bytes).asFlow().map { ByteBuffer.wrap(it) })
+
+            assertContentEquals(bytes.reversedArray(), dir.get(Path("tdir") / "tmp").readAll())
+            assertContentEquals(bytes + bytes, dir.get(Path("tdir") / "streamed").readAll())
+            // temporary files are moved into place
+            assertEquals(2, (tempDir!! / mode.name / "tdir").listDirectoryEntries().size)
+        }
+    }
+
+    @Test
+    fun testFailedAtomicWriteKeepsContent() = runBlocking {
+        val dir = localStorage(tempDir!!, writeMode = LocalWriteMode.ATOMIC)
+        dir.put("tmp").write(bytes)
+        val failing = flow {
+            emit(ByteBuffer.wrap(byteArrayOf(9, 9)))
+            error("Upload interrupted")
+        }
+        assertFails { dir.put("tmp").write(failing) }
+
+        assertContentEquals(bytes, dir.get("tmp").readAll())
+        assertEquals(listOf(tempDir!! / "tmp"), tempDir!!.listDirectoryEntries())
+    }
+
+    @Test
+    fun testWriteAfterDirectoryRemoval() = runBlocking {
+        testSample!!.put(Path("tdir") / "tmp1").write(bytes)
+        (tempDir!! / "tdir").toFile().deleteRecursively()
+        testSample!!.put(Path("tdir") / "tmp2").write(bytes)
+        assertContentEquals(bytes, (tempDir!! / "tdir" / "tmp2").readBytes())
+    }
+
+    @Test
+    fun testBatch() = runBlocking {
+        val files = (0 until 50).associate { Path("dir${it % 5}") / "file$it" to byteArrayOf(it.toByte()) }
+        testSample!!.putAll(files, concurrency = 4)
+        assertEquals(5, tempDir!!.listDirectoryEntries().size)
+
+        val read = testSample!!.getAll(files.keys, concurrency = 4)
+        assertEquals(files.keys, read.keys)
+        files.forEach { (path, content) -> assertContentEquals(content, read.getValue(path)) }
+    }
+
+    @Test
+    fun testWatch() = runBlocking {
+        val events = Channel<ChangeEvent>(Channel.UNLIMITED)
+        val watcher = launch { testSample!!.watch().collect { events.send(it) } }
+        suspend fun awaitEvent(expected: ChangeEvent) = withTimeout(5000) {
+            while (events.receive() != expected) continue
+        }
+
+        // watch service is registered asynchronously, so the file is rewritten until it is noticed
+        do {
+            testSample!!.put("tmp").write(bytes)
+        } while (withTimeoutOrNull(200) { events.receive() } == null)
+
+        testSample!!.put(Path("dir") / "inner" / "tmp").write(bytes)
+        awaitEvent(ChangeEvent(ChangeKind.CREATED, Path("dir") / "inner" / "tmp"))
+
+        testSample!!.delete("tmp")
+        awaitEvent(ChangeEvent(ChangeKind.DELETED, Path("tmp")))
+        watcher.cancel()
+    }
+
     @AfterTest
     fun tearDown() {
         tempDir!!.toFile().deleteRecursively()
@@ -0,0 +1,69 @@
+package space.kscience.snark.storage.memory
+
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.flow.toList
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import space.kscience.snark.storage.*
+import java.io.ByteArrayOutputStream
+import java.nio.channels.Channels
+import kotlin.io.path.Path
+import kotlin.io.path.div
+import kotlin.test.*
+
+internal class MemoryDriverTests {
+
+    private val bytes = ByteArray(100) { it.toByte() }
+
+    private fun checkFiles(storage: Directory) = runBlocking {
+        (storage / "dir").put("tmp").write(bytes)
+        val file = storage.get(Path("dir") / "tmp")
+        assertContentEquals(bytes, file.readAll())
+        assertEquals(listOf(30, 30, 30, 10), file.read(30).toList().map { it.remaining() })
+        assertContentEquals(bytes.copyOfRange(10, 50), file.readRange(10L..49L))
+        assertContentEquals(bytes.copyOfRange(90, 100), file.readRange(90L..1000L))
+
+        val output = ByteArrayOutputStream()
+        assertEquals(100, file.transferTo(Channels.newChannel(output)))
+        assertContentEquals(bytes, output.toByteArray())
+
+        // stored content is not affected by changes of written array
+        val written = bytes.copyOf()
+        storage.put("other").write(written)
+        written.fill(0)
+        assertContentEquals(bytes, storage.get("other").readAll())
+    }
+
+    @Test
+    fun testHeap() = checkFiles(inMemoryStorage())
+
+    @Test
+    fun testOffHeap() = checkFiles(MemoryConfig(stripes = 4, offHeap = true).build())
+
+    @Test
+    fun testListStat() = runBlocking<Unit> {
+        val storage = inMemoryStorage(stripes = 3)
+        for (name in listOf("a", "dir/b", "dir/c", "dir/inner/d", "director")) {
+            storage.put(name).write(bytes)
+        }
+        assertEquals(5, storage.list().toList().size)
+        assertEquals(setOf("b", "c", "inner/d"), (storage / "dir").list().toList().map { it.path.toString() }.toSet())
+        assertEquals(setOf(Path("dir") / "inner" / "d"), storage.list("dir/inner").toList().map { it.path }.toSet())
+        assertEquals(100, storage.stat("dir/b")?.size)
+
+        assertTrue(storage.delete("dir/b"))
+        assertFalse(storage.delete("dir/b"))
+        assertNull(storage.stat("dir/b"))
+        assertFails { storage.get("dir/b").readAll() }
+    }
+
+    @Test
+    fun testConcurrentWrites() = runBlocking(Dispatchers.Default) {
+        val storage = inMemoryStorage(stripes = 4)
+        (0 until 100).map { i ->
+            launch { storage.put("file$i").write(byteArrayOf(i.toByte())) }
+        }.forEach { it.join() }
+        assertEquals(100, storage.list().toList().size)
+        assertEquals(42, storage.get("file42").readAll().single().toInt())
+    }
+}
@@ -0,0 +1,80 @@
+package space.kscience.snark.storage.metrics
+
+import kotlinx.coroutines.flow.asFlow
+import kotlinx.coroutines.flow.map
+import kotlinx.coroutines.flow.toList
+import kotlinx.coroutines.runBlocking
+import space.kscience.snark.storage.*
+import java.nio.ByteBuffer
+import java.nio.file.Path
+import kotlin.io.path.Path
+import kotlin.io.path.createTempDirectory
+import kotlin.io.path.div
+import kotlin.test.*
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.microseconds
+import kotlin.time.Duration.Companion.milliseconds
+import kotlin.time.Duration.Companion.seconds
+
+internal class InstrumentedDirectoryTests {
+
+    private var tempDir: Path? = null
+    private var metrics: InMemoryMetrics? = null
+    private var storage: Directory? = null
+
+    @BeforeTest
+    fun setUp() {
+        tempDir = createTempDirectory()
+        metrics = InMemoryMetrics()
+        storage = InstrumentedConfig(LocalConfig(tempDir!!), metrics!!).build()
+    }
+
+    private val bytes = ByteArray(100) { it.toByte() }
+
+    @Test
+    fun testOperations() = runBlocking {
+        (storage!! / "dir").put("tmp").write(bytes)
+        storage!!.put("flow").write(bytes.asList().chunked(30).asFlow().map { ByteBuffer.wrap(it.toByteArray()) })
+        storage!!.get(Path("dir") / "tmp").readAll()
+        storage!!.get("flow").read(10).toList()
+        storage!!.getAll(listOf(Path("flow"), Path("dir") / "tmp"))
+
+        assertEquals(1, metrics!![StorageOperation.GET_SUBDIR].count)
+        assertEquals(2, metrics!![StorageOperation.PUT].count)
+        assertEquals(2, metrics!![StorageOperation.WRITE].count)
+        assertEquals(200, metrics!![StorageOperation.WRITE].bytes)
+        assertEquals(100, metrics!![StorageOperation.READ_ALL].bytes)
+        assertEquals(100, metrics!![StorageOperation.READ].bytes)
+        assertEquals(200, metrics!![StorageOperation.GET_ALL].bytes)
+        assertTrue(metrics!![StorageOperation.WRITE].latency(1.0) > Duration.ZERO)
+    }
+
+    @Test
+    fun testErrors() = runBlocking {
+        assertFails { storage!!.get("missing").readAll() }
+        storage!!.put("tmp").write(bytes)
+        storage!!.get("tmp").readAll()
+
+        val reads = metrics!![StorageOperation.READ_ALL]
+        assertEquals(2, reads.count)
+        assertEquals(1, reads.errors)
+        assertEquals(0.5, reads.errorRate)
+    }
+
+    @Test
+    fun testHistogram() {
+        val operation = InMemoryMetrics()[StorageOperation.STAT]
+        assertEquals(Duration.ZERO, operation.latency(0.5))
+        repeat(9) { operation.record(100.microseconds, 0, null) }
+        operation.record(3.milliseconds, 0, null)
+        assertEquals(128.microseconds, operation.latency(0.9))
+        assertEquals(4096.microseconds, operation.latency(1.0))
+        operation.record(10.seconds * 60, 0, null)
+        assertEquals(Duration.INFINITE, operation.latency(1.0))
+    }
+
+    @AfterTest
+    fun tearDown() {
+        tempDir!!.toFile().deleteRecursively()
+    }
+}
@@ -0,0 +1,217 @@
+package space.kscience.snark.storage.s3
+
+import kotlinx.coroutines.flow.asFlow
+import kotlinx.coroutines.flow.map
+import kotlinx.coroutines.flow.toList
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import kotlinx.coroutines.withTimeoutOrNull
+import space.kscience.snark.storage.*
+import java.nio.ByteBuffer
+import kotlin.io.path.Path
+import kotlin.io.path.div
+import kotlin.test.*
+import kotlin.time.Duration.Companion.milliseconds
+
+internal class S3DriverTests {
+
+    private val partSize = 5 * 1024 * 1024
+    private val upload = S3UploadOptions(partSize = partSize, partConcurrency = 2, multipartThreshold = 6 * 1024 * 1024)
+    private var s3: InMemoryS3? = null
+    private var bucket: Directory? = null
+
+    @BeforeTest
+    fun setUp() {
+        s3 = InMemoryS3(pageSize = 2)
+        bucket = s3Bucket(s3!!.client, "snark-test", upload)
+    }
+
+    private fun calls(operation: String): Int = s3!!.calls[operation]?.get() ?: 0
+
+    @Test
+    fun testPutGet() = runBlocking {
+        val bytes = byteArrayOf(0, 1, 2, 3)
+        (bucket!! / "tmp").put("data").write(bytes)
+        assertContentEquals(bytes, bucket!!.get(Path("tmp") / "data").readAll())
+        assertEquals(1, calls("putObject"))
+    }
+
+    @Test
+    fun testBatch() = runBlocking {
+        val files = (0 until 20).associate { Path("dir") / "file$it" to byteArrayOf(it.toByte()) }
+        bucket!!.putAll(files, concurrency = 4)
+        assertEquals(20, calls("putObject"))
+
+        val read = (bucket!! / "dir").getAll(files.keys.map { it.fileName }, concurrency = 4)
+        assertEquals(20, read.size)
+        files.forEach { (path, content) -> assertContentEquals(content, read.getValue(path.fileName)) }
+    }
+
+    @Test
+    fun testMultipartWrite() = runBlocking {
+        val content = ByteArray(2 * partSize + 1000) { it.toByte() }
+        bucket!!.put("big").write(content)
+
+        assertEquals(0, calls("putObject"))
+        assertEquals(3, calls("uploadPart"))
+        assertContentEquals(content, s3!!.objects.getValue("snark-test" to "big").bytes)
+    }
+
+    @Test
+    fun testStreamingWrite() = runBlocking {
+        val content = ByteArray(2 * partSize + 1000) { (it / 7).toByte() }
+        val chunks = (content.indices step 100_000).map { content.copyOfRange(it, minOf(it + 100_000, content.size)) }
+        bucket!!.put("big").write(chunks.asFlow().map { ByteBuffer.wrap(it) })
+
+        assertEquals(3, calls("uploadPart"))
+        assertContentEquals(content, bucket!!.get("big").readAll())
+
+        bucket!!.put("small").write(chunks.take(3).asFlow().map { ByteBuffer.wrap(it) })
+        assertEquals(1, calls("putObject"))
+        assertEquals(300_000, bucket!!.get("small").readAll().size)
+    }
+
+    @Test
+    fun testFailedPartAbortsUpload() {
+        s3!!.failures += "uploadPart"
+        assertFails {
+            runBlocking { bucket!!.put("big").write(ByteArray(2 * partSize)) }
+        }
+        assertEquals(1, calls("abortMultipartUpload"))
+        assertEquals(0, s3!!.pendingUploads)
+        assertFalse(s3!!.objects.containsKey("snark-test" to "big"))
+    }
+
+    @Test
+    fun testStreamingRead() = runBlocking {
+        val content = ByteArray(3 * 1024 * 1024 + 10) { (it % 13).toByte() }
+        bucket!!.put("big").write(content)
+
+        val chunks = bucket!!.get("big").read(1024 * 1024).toList()
+        assertEquals(4, chunks.size)
+        assertContentEquals(content, chunks.asFlow().toByteArray())
+        assertEquals(1, calls("getObject"))
+    }
+
+    @Test
+    fun testRangedRead() = runBlocking {
+        val content = ByteArray(10_000) { (it % 13).toByte() }
+        bucket!!.put("data").write(content)
+
+        assertContentEquals(content.copyOfRange(100, 200), bucket!!.get("data").readRange(100L..199L))
+        assertContentEquals(content.copyOfRange(9_000, 10_000), bucket!!.get("data").readRange(9_000L..20_000L))
+        assertTrue(bucket!!.get("data").readRange(20_000L..30_000L).isEmpty())
+    }
+
+    @Test
+    fun testParallelRead() = runBlocking {
+        val parallel = s3Bucket(s3!!.client, "snark-test", upload, S3DownloadOptions(rangeSize = 1000, rangeConcurrency = 3))
+        val content = ByteArray(10_500) { (it % 13).toByte() }
+        parallel.put("data").write(content)
+
+        assertContentEquals(content, parallel.get("data").readAll())
+        assertEquals(11, calls("getObject"))
+
+        val chunks = parallel.get("data").read(500L until 5_500L, 300).toList()
+        assertTrue(chunks.all { it.remaining() <= 300 })
+        assertContentEquals(content.copyOfRange(500, 5_500), chunks.asFlow().toByteArray())
+    }
+
+    @Test
+    fun testParallelReadOfOverwrittenObject() = runBlocking {
+        val parallel = s3Bucket(s3!!.client, "snark-test", upload, S3DownloadOptions(rangeSize = 1000, rangeConcurrency = 3))
+        val old = ByteArray(5_000) { 1 }
+        val new = ByteArray(5_000) { 2 }
+        parallel.put("data").write(old)
+
+        // the object is replaced after its version is taken, ranges of the old version are refused
+        var overwritten = false
+        s3!!.beforeCall = { operation ->
+            if (operation == "getObject" && !overwritten) {
+                overwritten = true
+                s3!!.objects["snark-test" to "data"] = InMemoryS3.StoredObject(new)
+            }
+        }
+        assertContentEquals(new, parallel.get("data").readAll())
+
+        s3!!.objects["snark-test" to "data"] = InMemoryS3.StoredObject(old)
+        s3!!.beforeCall = null
+        val streamed = ArrayList<ByteBuffer>()
+        assertFailsWith<java.io.IOException> {
+            parallel.get("data").read(1000).collect { chunk ->
+                streamed += chunk
+                s3!!.objects["snark-test" to "data"] = InMemoryS3.StoredObject(new)
+            }
+        }
+        assertTrue(streamed.all { buffer -> buffer.duplicate().let { b -> (0 until b.remaining()).all { b.get(it) == 1.toByte() } } })
+    }
+
+    @Test
+    fun testListStat() = runBlocking {
+        val bytes = byteArrayOf(0, 1, 2, 3)
+        for (name in listOf("a", "dir/b", "dir/c", "dir/inner/d", "other/e")) {
+            bucket!!.put(name).write(bytes)
+        }
+
+        assertEquals(5, bucket!!.list().toList().size)
+        val listed = (bucket!! / "dir").list().toList().map { it.path.toString() }.toSet()
+        assertEquals(setOf("b", "c", "inner/d"), listed)
+        assertEquals(setOf(Path("dir") / "inner" / "d"), bucket!!.list("dir/inner").toList().map { it.path }.toSet())
+
+        val info = bucket!!.stat("dir/b")
+        assertNotNull(info)
+        assertEquals(4, info.size)
+        assertNotNull(info.eTag)
+        assertNull(bucket!!.stat("missing"))
+
+        assertTrue(bucket!!.delete("dir/b"))
+        assertFalse(bucket!!.delete("dir/b"))
+        assertNull(bucket!!.stat("dir/b"))
+    }
+
+    @Test
+    fun testPollChanges() = runBlocking {
+        val events = Channel<ChangeEvent>(Channel.UNLIMITED)
+        val watcher = launch { (bucket!! / "dir").pollChanges(10.milliseconds).collect { events.send(it) } }
+
+        // first listing is taken asynchronously, so the file is rewritten until it is noticed
+        do {
+            bucket!!.put("dir/a").write(byteArrayOf(0))
+        } while (withTimeoutOrNull(100) { events.receive() } == null)
+
+        bucket!!.put("dir/b").write(byteArrayOf(1))
+        bucket!!.put("other").write(byteArrayOf(2))
+        assertEquals(ChangeEvent(ChangeKind.CREATED, Path("b")), withTimeout(1000) { events.receive() })
+        bucket!!.delete("dir/a")
+        assertEquals(ChangeEvent(ChangeKind.DELETED, Path("a")), withTimeout(1000) { events.receive() })
+        watcher.cancel()
+    }
+
+    @Test
+    fun testSharedClients() {
+        val created = mutableListOf<InMemoryS3>()
+        val pool = S3ClientPool { S3ClientHandle(InMemoryS3().also { created += it }.client, null) }
+        val key = S3ClientKey("region", null, S3ConnectionOptions())
+
+        val first = s3Bucket(pool.acquire(key), "snark-test", upload, S3DownloadOptions())
+        val second = s3Bucket(pool.acquire(key), "other", upload, S3DownloadOptions())
+        val otherEndpoint = pool.acquire(key.copy(endpoint = "http://localhost:9000"))
+        assertEquals(2, created.size)
+
+        runBlocking { (first / "subdir").close() }
+        first.close()
+        first.close()
+        assertEquals(2, pool.size)
+        assertNull(created[0].calls["close"])
+
+        second.close()
+        assertEquals(1, pool.size)
+        assertEquals(1, created[0].calls["close"]?.get())
+
+        otherEndpoint.close()
+        assertEquals(0, pool.size)
+        assertEquals(1, created[1].calls["close"]?.get())
+    }
+}
@@ -101,6 +101,45 @@ internal class UnzipTests {
         assertEquals(tdirEntries.first(), targetPath / Path("tdir") / Path("tmp3"))
     }
 
+    @Test
+    fun testUnzipLargeEntries() = runBlocking {
+        val archivePath = tempDir!! / "large.zip"
+        val contents = (0 until 20).associate { index ->
+            "dir${index % 3}/file$index" to ByteArray(100_000 + index) { (it * index).toByte() }
+        }
+        // entries are written without size, so it is unknown while reading
+        ZipOutputStream(archivePath.outputStream()).use { zipOut ->
+            for ((name, content) in contents) {
+                zipOut.putNextEntry(ZipEntry(name))
+                zipOut.write(content)
+                zipOut.closeEntry()
+            }
+        }
+
+        val target = localStorage(tempDir!!) / "target"
+        unzip(archivePath.toString(), target, parallelism = 4, chunkSize = 4096)
+
+        for ((name, content) in contents) {
+            assertContentEquals(content, target.get(name).readAll())
+        }
+    }
+
+    @Test
+    fun testUnzipRejectsEscapingEntries() {
+        val archivePath = tempDir!! / "evil.zip"
+        ZipOutputStream(archivePath.outputStream()).use { zipOut ->
+            zipOut.putNextEntry(ZipEntry("../evil"))
+            zipOut.write(byteArrayOf(1))
+            zipOut.closeEntry()
+        }
+
+        assertFailsWith<IllegalArgumentException> {
+            runBlocking { unzip(archivePath.toString(), localStorage(tempDir!! / "target")) }
+        }
+        // the target is tempDir/target, so an escaping entry would land in tempDir
+        assertFalse((tempDir!! / "evil").exists())
+    }
+
     @AfterTest
     fun tearDown() {
         tempDir!!.toFile().deleteRecursively()
@@ -0,0 +1,165 @@
+package space.kscience.snark.storage.s3
+
+import aws.sdk.kotlin.services.s3.S3Client
+import aws.sdk.kotlin.services.s3.model.*
+import aws.smithy.kotlin.runtime.ServiceErrorMetadata
+import aws.smithy.kotlin.runtime.content.ByteStream
+import aws.smithy.kotlin.runtime.time.Instant
+import java.lang.reflect.Proxy
+import java.security.MessageDigest
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.coroutines.Continuation
+
+/**
+ * In-process S3 stand-in for tests and benchmarks. Objects of all buckets are kept in memory,
+ * only operations used by the driver are supported.
+ */
+public class InMemoryS3(private val pageSize: Int = 1000) {
+    public class StoredObject(public val bytes: ByteArray, public val lastModified: Instant = Instant.now()) {
+        public val eTag: String = MessageDigest.getInstance("MD5").digest(bytes).joinToString("") { "%02x".format(it) }
+    }
+
+    public val objects: ConcurrentHashMap<Pair<String, String>, StoredObject> = ConcurrentHashMap()
+    private val uploads = ConcurrentHashMap<String, ConcurrentHashMap<Int, ByteArray>>()
+    private val uploadIds = AtomicInteger()
+
+    // number of calls of each client operation
+    public val calls: ConcurrentHashMap<String, AtomicInteger> = ConcurrentHashMap()
+
+    // operation names, which fail on their next call
+    public val failures: MutableSet<String> = ConcurrentHashMap.newKeySet()
+
+    public val pendingUploads: Int get() = uploads.size
+
+    // called with operation name before each call, e.g. to change objects between requests
+    public var beforeCall: ((String) -> Unit)? = null
+
+    private fun ByteStream?.bytes(): ByteArray = (this as? ByteStream.Buffer)?.bytes() ?: ByteArray(0)
+
+    private fun getObject(request: GetObjectRequest): GetObjectResponse {
+        val stored = objects[request.bucket!! to request.key!!] ?: throw NoSuchKey {}
+        if (request.ifMatch != null && request.ifMatch != stored.eTag) {
+            throw S3Exception().apply { sdkErrorMetadata.attributes[ServiceErrorMetadata.ErrorCode] = "PreconditionFailed" }
+        }
+        val range = request.range?.removePrefix("bytes=")?.split("-")
+        val bytes = if (range == null) {
+            stored.bytes
+        } else {
+            stored.bytes.copyOfRange(range[0].toInt(), minOf(range[1].toInt() + 1, stored.bytes.size))
+        }
+        return GetObjectResponse {
+            body = ByteStream.fromBytes(bytes)
+            contentLength = bytes.size.toLong()
+            eTag = stored.eTag
+            lastModified = stored.lastModified
+        }
+    }
+
+    private fun headObject(request: HeadObjectRequest): HeadObjectResponse {
+        val stored = objects[request.bucket!! to request.key!!] ?: throw NotFound {}
+        return HeadObjectResponse {
+            contentLength = stored.bytes.size.toLong()
+            eTag = stored.eTag
+            lastModified = stored.lastModified
+        }
+    }
+
+    private fun putObject(request: PutObjectRequest): PutObjectResponse {
+        val stored = StoredObject(request.body.bytes())
+        objects[request.bucket!! to request.key!!] = stored
+        return PutObjectResponse { eTag = stored.eTag }
+    }
+
+    private fun listObjectsV2(request: ListObjectsV2Request): ListObjectsV2Response {
+        val keys = objects.keys
+            .filter { (bucket, key) -> bucket == request.bucket && key.startsWith(request.prefix ?: "") }
+            .map { it.second }
+            .sorted()
+        val from = request.continuationToken?.toInt() ?: 0
+        val page = keys.drop(from).take(pageSize)
+        val truncated = from + page.size < keys.size
+        return ListObjectsV2Response {
+            contents = page.map { objectKey ->
+                val stored = objects.getValue(request.bucket!! to objectKey)
+                Object {
+                    key = objectKey
+                    size = stored.bytes.size.toLong()
+                    eTag = stored.eTag
+                    lastModified = stored.lastModified
+                }
+            }
+            isTruncated = truncated
+            nextContinuationToken = if (truncated) (from + page.size).toString() else null
+        }
+    }
+
+    private fun createMultipartUpload(): CreateMultipartUploadResponse {
+        val id = "upload-${uploadIds.incrementAndGet()}"
+        uploads[id] = ConcurrentHashMap()
+        return CreateMultipartUploadResponse { uploadId = id }
+    }
+
+    private fun uploadPart(request: UploadPartRequest): UploadPartResponse {
+        val bytes = request.body.bytes()
+        val parts = uploads[request.uploadId!!] ?: throw NoSuchUpload {}
+        parts[request.partNumber!!] = bytes
+        return UploadPartResponse { eTag = StoredObject(bytes).eTag }
+    }
+
+    private fun completeMultipartUpload(request: CompleteMultipartUploadRequest): CompleteMultipartUploadResponse {
+        val parts = uploads.remove(request.uploadId!!) ?: throw NoSuchUpload {}
+        val completed = request.multipartUpload?.parts.orEmpty()
+        check(completed.map { it.partNumber } == (1..parts.size).toList()) { "Parts are missing or out of order" }
+        val bytes = completed.fold(ByteArray(0)) { acc, part -> acc + parts.getValue(part.partNumber!!) }
+        val stored = StoredObject(bytes)
+        objects[request.bucket!! to request.key!!] = stored
+        return CompleteMultipartUploadResponse { eTag = stored.eTag }
+    }
+
+    private fun deleteObject(request: DeleteObjectRequest): DeleteObjectResponse {
+        objects.remove(request.bucket!! to request.key!!)
+        return DeleteObjectResponse {}
+    }
+
+    private fun abortMultipartUpload(request: AbortMultipartUploadRequest): AbortMultipartUploadResponse {
+        uploads.remove(request.uploadId!!)
+        return AbortMultipartUploadResponse {}
+    }
+
+    private fun handle(name: String, args: Array<Any?>): Any? {
+        calls.getOrPut(name) { AtomicInteger() }.incrementAndGet()
+        beforeCall?.invoke(name)
+        if (failures.remove(name)) error("Simulated failure of $name")
+        return when (name) {
+            "getObject" -> {
+                // suspend block is invoked in the continuation of the client call
+                @Suppress("UNCHECKED_CAST")
+                val block = args[1] as (GetObjectResponse, Continuation<Any?>) -> Any?
+                @Suppress("UNCHECKED_CAST")
+                block(getObject(args[0] as GetObjectRequest), args[2] as Continuation<Any?>)
+            }
+            "headObject" -> headObject(args[0] as HeadObjectRequest)
+            "putObject" -> putObject(args[0] as PutObjectRequest)
+            "deleteObject" -> deleteObject(args[0] as DeleteObjectRequest)
+            "listObjectsV2" -> listObjectsV2(args[0] as ListObjectsV2Request)
+            "createMultipartUpload" -> createMultipartUpload()
+            "uploadPart" -> uploadPart(args[0] as UploadPartRequest)
+            "completeMultipartUpload" -> completeMultipartUpload(args[0] as CompleteMultipartUploadRequest)
+            "abortMultipartUpload" -> abortMultipartUpload(args[0] as AbortMultipartUploadRequest)
+            "headBucket" -> HeadBucketResponse {}
+            "close" -> Unit
+            "toString" -> "InMemoryS3"
+            "hashCode" -> System.identityHashCode(this)
+            "equals" -> args[0] === client
+            else -> throw UnsupportedOperationException("$name is not supported by in-memory S3")
+        }
+    }
+
+    public val client: S3Client = Proxy.newProxyInstance(
+        S3Client::class.java.classLoader,
+        arrayOf(S3Client::class.java)
+    ) { _, method, args ->
+        handle(method.name, args ?: emptyArray())
+    } as S3Client
+}